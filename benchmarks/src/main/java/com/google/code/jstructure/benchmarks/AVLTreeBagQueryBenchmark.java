@@ -0,0 +1,40 @@
+package com.google.code.jstructure.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+@State(Scope.Thread)
+public class AVLTreeBagQueryBenchmark extends BagState {
+    
+    private static final double[] DASHBOARD = {50, 75, 90, 95, 99, 99.9};
+    
+    @Param({"50", "90", "99", "100"})
+    int percentile;
+    
+    @Benchmark
+    public Integer elementAtPercentile() {
+        return bag.elementAtPercentile(percentile);
+    }
+    
+    @Benchmark
+    public List<Integer> elementsAtDashboardPercentiles() {
+        return bag.elementsAtPercentiles(DASHBOARD);
+    }
+    
+}
@@ -0,0 +1,70 @@
+package com.google.code.jstructure.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adds and removes are measured in self-restoring batches, each adding then removing the same
+ * items or the other way round, so the bag is back to its original size after every
+ * invocation without any per invocation set up, whose own cost JMH cannot hide for batches
+ * this short. Each result is the mean of an add and a remove.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+@State(Scope.Thread)
+public class AVLTreeBagUpdateBenchmark extends BagState {
+    
+    static final int BATCH = 100;
+    
+    private Integer[]   toAdd;
+    private Integer[]   toRemove;
+    
+    @Override
+    void bagCreated() {
+        toAdd       = distribution.values(size, BATCH, random); // sorted carries on ascending
+        toRemove    = new Integer[BATCH];
+        for (int i = 0 ; i < BATCH ; i++) {
+            toRemove[i] = values[(int) ((long) i * size / BATCH)];
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(2 * BATCH)
+    public boolean addThenRemove() {
+        for (Integer item : toAdd) {
+            bag.add(item);
+        }
+        boolean all = true;
+        for (Integer item : toAdd) {
+            all &= bag.remove(item);
+        }
+        return all;
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(2 * BATCH)
+    public boolean removeThenAdd() {
+        boolean all = true;
+        for (Integer item : toRemove) {
+            all &= bag.remove(item);
+        }
+        for (Integer item : toRemove) {
+            bag.add(item);
+        }
+        return all;
+    }
+    
+}
@@ -0,0 +1,42 @@
+package com.google.code.jstructure.benchmarks;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.code.jstructure.avltree.AVLTreeBag;
+
+/**
+ * A bag of the given size and distribution shared by the benchmarks.
+ */
+@State(Scope.Thread)
+public abstract class BagState {
+    
+    @Param({"1000", "100000", "10000000"})
+    int size;
+    
+    @Param({"SORTED", "RANDOM", "DUPLICATED"})
+    Distribution distribution;
+    
+    Random              random;
+    Integer[]           values;
+    AVLTreeBag<Integer> bag;
+    
+    @Setup(Level.Trial)
+    public void createBag() {
+        random  = new Random(42);
+        values  = distribution.values(0, size, random);
+        bag     = AVLTreeBag.fromUnsorted(values.clone());
+        bagCreated();
+    }
+    
+    /**
+     * Hook for further set up, as JMH doesn't order the set up methods of a class and its superclass.
+     */
+    void bagCreated() {
+    }
+}
@@ -0,0 +1,45 @@
+package com.google.code.jstructure.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Shapes of input for the benchmarks.
+ */
+public enum Distribution {
+    
+    /** Ascending, the worst case for rebalancing */
+    SORTED {
+        @Override
+        int value(int index, Random random) {
+            return index;
+        }
+    },
+    
+    RANDOM {
+        @Override
+        int value(int index, Random random) {
+            return random.nextInt();
+        }
+    },
+    
+    /** A thousand distinct values, like latencies bucketed to microseconds */
+    DUPLICATED {
+        @Override
+        int value(int index, Random random) {
+            return random.nextInt(1000);
+        }
+    };
+    
+    abstract int value(int index, Random random);
+    
+    /**
+     * Boxed up front so boxing isn't measured.
+     */
+    Integer[] values(int from, int count, Random random) {
+        Integer[] values = new Integer[count];
+        for (int i = 0 ; i < count ; i++) {
+            values[i] = value(from + i, random);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,126 @@
+package com.google.code.jstructure.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.code.jstructure.avltree.AVLTreeBag;
+import com.google.code.jstructure.avltree.LongAVLTreeBag;
+import com.google.code.jstructure.btree.LongBPlusTreeBag;
+
+/**
+ * Compares the binary trees with the B+tree on the same random longs. Each fork measures one
+ * implementation so the calls through {@link LongBag} stay monomorphic.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+@State(Scope.Thread)
+public class LongBagBenchmark {
+    
+    static final int BATCH = AVLTreeBagUpdateBenchmark.BATCH;
+    
+    interface LongBag {
+        void add(long item);
+        boolean remove(long item);
+        long elementAtPercentile(int percentile);
+    }
+    
+    public enum Implementation {
+        AVL_TREE {
+            LongBag create() {
+                final AVLTreeBag<Long> bag = new AVLTreeBag<Long>();
+                return new LongBag() {
+                    public void add(long item) { bag.add(item); }
+                    public boolean remove(long item) { return bag.remove(item); }
+                    public long elementAtPercentile(int percentile) { return bag.elementAtPercentile(percentile); }
+                };
+            }
+        },
+        LONG_AVL_TREE {
+            LongBag create() {
+                final LongAVLTreeBag bag = new LongAVLTreeBag();
+                return new LongBag() {
+                    public void add(long item) { bag.add(item); }
+                    public boolean remove(long item) { return bag.remove(item); }
+                    public long elementAtPercentile(int percentile) { return bag.elementAtPercentile(percentile); }
+                };
+            }
+        },
+        B_PLUS_TREE {
+            LongBag create() {
+                final LongBPlusTreeBag bag = new LongBPlusTreeBag();
+                return new LongBag() {
+                    public void add(long item) { bag.add(item); }
+                    public boolean remove(long item) { return bag.remove(item); }
+                    public long elementAtPercentile(int percentile) { return bag.elementAtPercentile(percentile); }
+                };
+            }
+        };
+        
+        abstract LongBag create();
+    }
+    
+    @Param({"100000", "10000000"})
+    int size;
+    
+    @Param({"AVL_TREE", "LONG_AVL_TREE", "B_PLUS_TREE"})
+    Implementation implementation;
+    
+    @Param({"99"})
+    int percentile;
+    
+    private LongBag bag;
+    private long[]  toAdd;
+    
+    @Setup(Level.Trial)
+    public void createBag() {
+        Random random = new Random(42);
+        bag = implementation.create();
+        for (int i = 0 ; i < size ; i++) {
+            bag.add(random.nextLong());
+        }
+        toAdd = new long[BATCH];
+        for (int i = 0 ; i < BATCH ; i++) {
+            toAdd[i] = random.nextLong();
+        }
+    }
+    
+    /**
+     * Adds a batch and removes it again, so the bag is back to its original size without any
+     * per invocation set up.
+     */
+    @Benchmark
+    @OperationsPerInvocation(2 * BATCH)
+    public boolean addThenRemove() {
+        for (long item : toAdd) {
+            bag.add(item);
+        }
+        boolean all = true;
+        for (long item : toAdd) {
+            all &= bag.remove(item);
+        }
+        return all;
+    }
+    
+    @Benchmark
+    public long elementAtPercentile() {
+        return bag.elementAtPercentile(percentile);
+    }
+    
+}
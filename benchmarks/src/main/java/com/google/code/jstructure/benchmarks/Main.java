@@ -0,0 +1,25 @@
+package com.google.code.jstructure.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks as {@link org.openjdk.jmh.Main} does, taking the same arguments, but always 
+ * with the GC profiler so that allocation rates are reported alongside times.
+ * <p>
+ * For example <code>java -jar target/benchmarks.jar AVLTreeBagQuery -p size=1000000</code>
+ */
+public class Main {
+    
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+    }
+    
+}
@@ -0,0 +1,19 @@
+package com.google.code.jstructure;
+
+/**
+ * A collection of samples, duplicates included, that can say which sample sits at a 
+ * given percentile.
+ */
+public interface PercentileBag<T> {
+    
+    void add(T item);
+    
+    int size();
+    
+    /**
+     * @param percentile 0 to 100 inclusive. Rounds up to the next element where the 
+     * percentile falls between two.
+     */
+    T elementAtPercentile(int percentile);
+    
+}
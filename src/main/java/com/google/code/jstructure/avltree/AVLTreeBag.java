@@ -1,61 +1,349 @@
 package com.google.code.jstructure.avltree;
 
-public class AVLTreeBag<T extends Comparable<T>> {
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.google.code.jstructure.PercentileBag;
+import com.google.code.jstructure.avltree.BagMetrics.Operation;
+
+/**
+ * Orders its items naturally, like {@link java.util.TreeMap}, unless given a {@link Comparator}
+ * or a key extractor. Items that compare as equal share a node, which keeps the first of them.
+ */
+public class AVLTreeBag<T> implements PercentileBag<T>, Iterable<T> {
+    
+    private static final int PARALLEL_BUILD_THRESHOLD = 1 << 13;
+    
+    private static final Comparator<Object> NATURAL_ORDER = (left, right) -> compare(left, right);
+    
+    private final Comparator<? super T>     comparator;
+    
+    private final ToLongFunction<? super T> keyExtractor; // null unless ordered by a long key
+    
+    private final BagMetrics                metrics;
+    
+    private final boolean                   instrumented; // when false the hot paths only pay for testing this
     
     private Node<T> root;
     
-    private int size;
+    private Node<T> first;  // the leftmost node, kept up to date so the extremes are O(1)
+    
+    private Node<T> last;
+    
+    private long size; // the total weight of the items
+    
+    public AVLTreeBag() {
+        this((Node<T>) null);
+    }
+    
+    public AVLTreeBag(BagMetrics metrics) {
+        this(null, NATURAL_ORDER, null, metrics);
+    }
+    
+    public AVLTreeBag(Comparator<? super T> comparator) {
+        this(comparator, BagMetrics.NONE);
+    }
+    
+    public AVLTreeBag(Comparator<? super T> comparator, BagMetrics metrics) {
+        this(null, comparator == null ? NATURAL_ORDER : comparator, null, metrics);
+    }
+    
+    /**
+     * Orders the items by a long key, eg the latency of a request, which is taken from each
+     * item once and cached in its node so that finding an item takes only primitive comparisons.
+     */
+    public AVLTreeBag(ToLongFunction<? super T> keyExtractor) {
+        this(keyExtractor, BagMetrics.NONE);
+    }
+    
+    public AVLTreeBag(ToLongFunction<? super T> keyExtractor, BagMetrics metrics) {
+        this(null, Comparator.comparingLong(keyExtractor), keyExtractor, metrics);
+    }
+    
+    AVLTreeBag(Node<T> root) {
+        this(root, NATURAL_ORDER, null, BagMetrics.NONE);
+    }
+    
+    private AVLTreeBag(Node<T> root, Comparator<? super T> comparator, ToLongFunction<? super T> keyExtractor, BagMetrics metrics) {
+        if (metrics == null) throw new IllegalArgumentException();
+        this.comparator     = comparator;
+        this.keyExtractor   = keyExtractor;
+        this.metrics        = metrics;
+        this.instrumented   = metrics != BagMetrics.NONE;
+        setRoot(root);
+    }
+    
+    /**
+     * @return a bag of the subtree ordered, and measured, the same way as this one
+     */
+    private AVLTreeBag<T> withSameOrder(Node<T> root) {
+        return new AVLTreeBag<T>(root, comparator, keyExtractor, metrics);
+    }
+    
+    /**
+     * Builds a perfectly balanced bag in O(n) with one pass of comparisons, to find the runs of
+     * equal items, and no rotations.
+     * @param sorted in ascending order
+     */
+    public static <T extends Comparable<T>> AVLTreeBag<T> fromSorted(List<? extends T> sorted) {
+        return new AVLTreeBag<T>(AVLTreeBag.<T>buildFromSorted(sorted.toArray(), false));
+    }
+    
+    /**
+     * Sorts the items in place with {@link Arrays#parallelSort(Comparable[])} then builds the 
+     * subtrees of the bag concurrently in the common {@link ForkJoinPool}.
+     */
+    public static <T extends Comparable<T>> AVLTreeBag<T> fromUnsorted(T[] items) {
+        for (T item : items) {
+            if (item == null) 
+                throw new IllegalArgumentException();
+        }
+        Arrays.parallelSort(items);
+        return new AVLTreeBag<T>(AVLTreeBag.<T>buildFromSorted(items, true));
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <T> int compare(Object left, Object right) {
+        return ((Comparable<T>) left).compareTo((T) right);
+    }
+    
+    /**
+     * Collapses runs of equal items into single nodes then builds a balanced tree of them.
+     */
+    private static <T> Node<T> buildFromSorted(Object[] sorted, boolean inParallel) {
+        int distinct = 0;
+        for (int i = 0 ; i < sorted.length ; i++) {
+            if (sorted[i] == null) 
+                throw new IllegalArgumentException();
+            int comparison = i == 0 ? -1 : compare(sorted[i - 1], sorted[i]);
+            if (comparison > 0) 
+                throw new IllegalArgumentException("not sorted at index " + i);
+            if (comparison != 0) 
+                distinct++;
+        }
+        Object[] items  = new Object[distinct];
+        long[] counts   = new long[distinct];
+        int run         = -1;
+        for (int i = 0 ; i < sorted.length ; i++) {
+            if (i == 0 || compare(sorted[i - 1], sorted[i]) != 0) {
+                items[++run] = sorted[i];
+            }
+            counts[run]++;
+        }
+        return buildFromRuns(items, counts, distinct, inParallel);
+    }
+    
+    /**
+     * @param items the first distinct of which are in strictly ascending order
+     * @param counts of each of them
+     */
+    static <T> Node<T> buildFromRuns(Object[] items, long[] counts, int distinct, boolean inParallel) {
+        return inParallel ? 
+                ForkJoinPool.commonPool().invoke(new BuildTask<T>(items, counts, 0, distinct)) : 
+                AVLTreeBag.<T>build(items, counts, 0, distinct);
+    }
+    
+    /**
+     * @return the root of a balanced subtree of the items from (inclusive) to to (exclusive)
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Node<T> build(Object[] items, long[] counts, int from, int to) {
+        if (from == to) return null;
+        int middle = (from + to) >>> 1;
+        return link(build(items, counts, from, middle), (T) items[middle], counts[middle], build(items, counts, middle + 1, to));
+    }
+    
+    /**
+     * Replaces the tree with a perfectly balanced one of the given nodes, in O(n) without any
+     * comparisons or rotations. The nodes themselves are reused, keeping their items and
+     * counts, so references to them stay valid.
+     * @param nodes in ascending order
+     */
+    void relink(Node<T>[] nodes, int length) {
+        Node<T> root = relink(nodes, 0, length);
+        if (root != null) {
+            root.setParent(null);
+        }
+        setRoot(root);
+    }
+    
+    private static <T> Node<T> relink(Node<T>[] nodes, int from, int to) {
+        if (from == to) return null;
+        int middle      = (from + to) >>> 1;
+        Node<T> node    = nodes[middle];
+        node.attachLeft(relink(nodes, from, middle));
+        node.attachRight(relink(nodes, middle + 1, to));
+        node.update();
+        return node;
+    }
+    
+    private static <T> Node<T> link(Node<T> left, T item, long count, Node<T> right) {
+        Node<T> node = new Node<T>(null, null, item, null);
+        node.setCount(count);
+        node.attachLeft(left);
+        node.attachRight(right);
+        node.update();
+        return node;
+    }
+    
+    private static class BuildTask<T> extends RecursiveTask<Node<T>> {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final Object[]  items;
+        private final long[]    counts;
+        private final int       from;
+        private final int       to;
+        
+        BuildTask(Object[] items, long[] counts, int from, int to) {
+            this.items  = items;
+            this.counts = counts;
+            this.from   = from;
+            this.to     = to;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected Node<T> compute() {
+            if (to - from <= PARALLEL_BUILD_THRESHOLD) {
+                return build(items, counts, from, to);
+            }
+            int middle          = (from + to) >>> 1;
+            BuildTask<T> left   = new BuildTask<T>(items, counts, from, middle);
+            left.fork();
+            Node<T> right       = new BuildTask<T>(items, counts, middle + 1, to).compute();
+            return link(left.join(), (T) items[middle], counts[middle], right);
+        }
+    }
 
     public boolean remove(T item) {
+        if (!instrumented) return internalRemove(item);
+        long start      = System.nanoTime();
+        boolean removed = internalRemove(item);
+        completed(Operation.REMOVE, start);
+        return removed;
+    }
+    
+    private boolean internalRemove(T item) {
+        long key        = keyOf(item);
         Node<T> node    = root;
-        Node<T> parent  = null;
+        int depth       = 0;
         while (node != null) {
-            if (item.compareTo(node.getItem()) > 0) {
-                parent = node;
+            depth++;
+            int comparison = compare(item, key, node);
+            if (comparison > 0) {
                 node = node.getRight();
-            } else if (item.compareTo(node.getItem()) < 0)  { 
-                parent = node;
+            } else if (comparison < 0)  { 
                 node = node.getLeft();
             } else {
                 break;
             }
         }
+        if (instrumented) metrics.descended(depth);
         if (node == null)
             return false; // didn't find anything
 
-        delete(node, parent);
-        size--;
+        remove(node);
         return true;
     }
+    
+    /**
+     * Takes away up to the given weight of an item in O(log n), eg to retract a bucket of a
+     * pre-aggregated histogram.
+     * @return how much weight was removed, which is less than asked for if the bag held less
+     */
+    public long remove(T item, long weight) {
+        if (weight < 1) throw new IllegalArgumentException("weight " + weight);
+        long start      = instrumented ? System.nanoTime() : 0;
+        long key        = keyOf(item);
+        Node<T> node    = root;
+        int depth       = 0;
+        while (node != null) {
+            depth++;
+            int comparison = compare(item, key, node);
+            if (comparison > 0) {
+                node = node.getRight();
+            } else if (comparison < 0)  { 
+                node = node.getLeft();
+            } else {
+                break;
+            }
+        }
+        long removed = node == null ? 0 : remove(node, weight);
+        if (instrumented) {
+            metrics.descended(depth);
+            completed(Operation.REMOVE, start);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes one of the items held by a node that is known to be in this bag without searching 
+     * for it. Nodes keep their identity when others are removed so a node returned by 
+     * {@link #addNode(Object)} stays valid until all its items have been removed.
+     */
+    void remove(Node<T> node) {
+        remove(node, 1);
+    }
+    
+    private long remove(Node<T> node, long weight) {
+        long count = node.getCount();
+        if (count > weight) {
+            node.setCount(count - weight);
+            node.updateUpwards(); // the shape is unchanged so there's nothing to rebalance
+        } else {
+            delete(node);
+            weight = count;
+        }
+        size -= weight;
+        return weight;
+    }
 
-    private void delete(Node<T> toDelete, Node<T> parent) {
+    private void delete(Node<T> toDelete) {
+        if (toDelete == first) {
+            first = toDelete.successor();
+        }
+        if (toDelete == last) {
+            last = toDelete.predecessor();
+        }
+        Node<T> parent  = toDelete.getParent();
+        Node<T> left    = toDelete.getLeft();
+        Node<T> right   = toDelete.getRight();
         Node<T> with    = null;
         Node<T> toCheck = null;
-        if (toDelete.getNumberOfChildren() == 0) {
-            // fall thru
-        } else if (toDelete.getNumberOfChildren() == 1) {
-            if (toDelete.getLeft() != null) {
-                with = toDelete.getLeft();
-            } else {
-                with = toDelete.getRight();
-            }
-            toCheck = with;
+        if (left == null || right == null) {
+            with    = left != null ? left : right;
+            toCheck = parent;
         } else {
-            Node<T> predecessor         = largestIn(toDelete.getLeft());
+            Node<T> predecessor         = largestIn(left);
             Node<T> predecessorParent   = predecessor.getParent();
-            Node<T> predecessorOldLeft  = predecessor.getLeft();
             if (predecessorParent != toDelete) {
-                predecessorParent.setRight(predecessorOldLeft);
-                predecessor.setLeft(toDelete.getLeft());
+                predecessorParent.attachRight(predecessor.getLeft());
+                predecessor.attachLeft(left);
+                toCheck = predecessorParent;
             } else {
-                predecessor.setRight(toDelete.getRight());
+                toCheck = predecessor;
             }
-            with    = predecessor;
-            toCheck = predecessorOldLeft == null ? predecessorParent : predecessorOldLeft;
+            predecessor.attachRight(right);
+            predecessor.takeHeightOf(toDelete);
+            with = predecessor;
         }
         changePosition(toDelete, parent, with);
+        toDelete.attachLeft(null);
+        toDelete.attachRight(null);
+        toDelete.setParent(null);
         if (toCheck != null) {
-            checkConsistency(toCheck, false);
+            checkConsistency(toCheck);
         }
     }
 
@@ -71,159 +359,841 @@ public class AVLTreeBag<T extends Comparable<T>> {
     }
     
     private Node<T> largestIn(Node<T> subtreeRoot) {
-        Node<T> right = subtreeRoot.getRight();
-        if (right != null) {
-            return largestIn(right);
-        } 
-        return subtreeRoot;
+        return Subtrees.last(subtreeRoot);
     }
 
     public void add(T item) {
+        if (!instrumented) {
+            addNode(item);
+            return;
+        }
+        long start = System.nanoTime();
+        addNode(item);
+        completed(Operation.ADD, start);
+    }
+    
+    /**
+     * Adds an item with the given weight, as if it had been added that many times, in O(log n).
+     * Percentiles are then of the cumulative weight, eg a bucket of a pre-aggregated histogram
+     * saying "12ms seen 3,417 times" is added as 12 with a weight of 3,417.
+     */
+    public void add(T item, long weight) {
+        if (weight < 1) throw new IllegalArgumentException("weight " + weight);
+        long start = instrumented ? System.nanoTime() : 0;
+        addNode(item, weight);
+        if (instrumented) completed(Operation.ADD, start);
+    }
+    
+    private void completed(Operation operation, long start) {
+        metrics.completed(operation, System.nanoTime() - start, size(), Node.heightOf(root));
+    }
+    
+    /**
+     * @return the node now holding the item
+     */
+    Node<T> addNode(T item) {
+        return addNode(item, 1);
+    }
+    
+    private Node<T> addNode(T item, long weight) {
         if (item == null) 
             throw new IllegalArgumentException();
-        internalAdd(item);
-        size++;
+        Node<T> node = internalAdd(item, weight);
+        size += weight;
+        return node;
     }
     
-    private void internalAdd(T item) {
+    private Node<T> internalAdd(T item, long weight) {
+        return insertBelow(root, item, keyOf(item), weight);
+    }
+    
+    /**
+     * @param node the root of the subtree the item belongs in
+     */
+    private Node<T> insertBelow(Node<T> node, T item, long key, long weight) {
         if (root == null) {
-            root = new Node<T>(null, null, item, null);
-            return;
+            root = newNode(item, key, null);
+            root.setCount(weight);
+            root.update();
+            first = last = root;
+            return root;
         }
-        Node<T> node    = root;
         Node<T> parent  = null;
         boolean isRight = false;
+        int depth       = 0;
         while (node != null) {
             parent = node;
-            if (item.compareTo(node.getItem()) > 0) {
+            depth++;
+            int comparison = compare(item, key, node);
+            if (comparison > 0) {
                 node = node.getRight();
                 isRight = true;
-            } else  { // if items are equal, arbitrarily use left value
+            } else if (comparison < 0) {
                 node = node.getLeft();
                 isRight = false;
+            } else { // equal items share a node
+                if (instrumented) metrics.descended(depth);
+                node.setCount(node.getCount() + weight);
+                node.updateUpwards();
+                return node;
             }
         }
         
-        Node<T> newNode = new Node<T>(null, null, item, parent);
+        if (instrumented) metrics.descended(depth);
+        Node<T> newNode = newNode(item, key, parent);
+        newNode.setCount(weight);
+        newNode.update();
         if (isRight) {
-            parent.setRight(newNode);
+            parent.attachRight(newNode);
+            if (parent == last) last = newNode;
         } else {
-            parent.setLeft(newNode);
+            parent.attachLeft(newNode);
+            if (parent == first) first = newNode;
         }
         
-        checkConsistency(newNode, isRight);
+        checkConsistency(parent);
+        return newNode;
     }
-
-    void checkConsistency(Node<T> node, boolean isRight) {
-        Node<T> grandParent = getGrandParent(node);
-        if (grandParent == null) return;
-        
-        Node<T> parent = node.getParent();
-        if (grandParent.balance() > 1) {
-            if (isRight) {
-                rightRight(parent);
-            } else {
-                rightLeft(parent);
+    
+    /**
+     * Adds items that are already sorted in this bag's order, eg a batch from an
+     * {@link IngestionBuffer}. Rather than descend from the root for each item this climbs from
+     * the node of the one before only as far as the subtree the next belongs in, so a batch of
+     * m items close together costs far less than m full descents, and equal neighbours are added
+     * to their node in one go.
+     * @throws IllegalArgumentException if an item is out of order, once those before it have been added
+     */
+    public void addAllSorted(T[] items, int from, int to) {
+        long start      = instrumented ? System.nanoTime() : 0;
+        Node<T> finger  = null;
+        int i           = from;
+        while (i < to) {
+            T item      = items[i];
+            if (item == null) throw new IllegalArgumentException();
+            long key    = keyOf(item);
+            int end     = i + 1;
+            while (end < to && items[end] != null && equal(items[end], item, key)) {
+                end++;
             }
-        } else if (grandParent.balance() < -1) {
-            if (isRight) {
-                leftRight(parent);
+            long weight = end - i;
+            if (finger == null) {
+                finger = insertBelow(root, item, key, weight);
+            } else if (compare(item, key, finger) < 0) {
+                throw new IllegalArgumentException(item + " is out of order");
             } else {
-                leftLeft(parent);
+                finger = insertBelow(climbFrom(finger, item, key), item, key, weight);
             }
-        } else {
-            checkConsistency(parent, parent.isRight(node));
+            size    += weight;
+            i       = end;
+        }
+        if (instrumented) completed(Operation.ADD, start);
+    }
+    
+    /**
+     * @param finger a node whose item is not greater than the given one
+     * @return the lowest ancestor of finger whose subtree the item belongs in
+     */
+    private Node<T> climbFrom(Node<T> finger, T item, long key) {
+        Node<T> node    = finger;
+        Node<T> parent  = node.getParent();
+        while (parent != null) {
+            if (parent.getLeft() == node && compare(item, key, parent) <= 0) {
+                return parent; // the first ancestor above the item
+            }
+            node    = parent;
+            parent  = node.getParent();
         }
+        return node;
     }
     
+    private boolean equal(T item, T other, long otherKey) {
+        return keyExtractor == null ? comparator.compare(item, other) == 0 : keyOf(item) == otherKey;
+    }
+    
+    Comparator<? super T> comparator() {
+        return comparator;
+    }
+    
+    boolean isNaturallyOrdered() {
+        return comparator == NATURAL_ORDER;
+    }
+    
+    /**
+     * @throws IllegalArgumentException unless the other bag is ordered the same way, with the
+     * same key if any, so its nodes can be moved into this one
+     */
+    private void checkSameOrder(AVLTreeBag<T> other) {
+        boolean same = keyExtractor == null ? 
+                other.keyExtractor == null && comparator.equals(other.comparator) : 
+                keyExtractor.equals(other.keyExtractor);
+        if (!same) throw new IllegalArgumentException("the bags are ordered differently");
+    }
+    
+    private long keyOf(T item) {
+        return keyExtractor == null ? 0 : keyExtractor.applyAsLong(item);
+    }
+    
+    /**
+     * @param key of the item if this bag is ordered by key
+     */
+    @SuppressWarnings("unchecked")
+    private int compare(T item, long key, Node<T> node) {
+        return keyExtractor == null ? 
+                comparator.compare(item, node.getItem()) : 
+                Long.compare(key, ((KeyedNode<T>) node).getKey());
+    }
+    
+    private Node<T> newNode(T item, long key, Node<T> parent) {
+        return keyExtractor == null ? new Node<T>(null, null, item, parent) : new KeyedNode<T>(item, key, parent);
+    }
+
+    /**
+     * Refreshes the cached height and size of node and all its ancestors, rotating
+     * any that have become unbalanced along the way. Once a subtree is back to the height 
+     * it had the balance of the nodes above it cannot have changed so only their sizes 
+     * are refreshed from then on.
+     * @param node whose children have changed, while the cached values of it and its ancestors
+     * have not yet
+     */
+    void checkConsistency(Node<T> node) {
+        while (node != null) {
+            int oldHeight       = node.getHeight();
+            node.update();
+            Node<T> subtreeRoot = Subtrees.rebalance(node, metrics);
+            rotated(subtreeRoot);
+            node                = subtreeRoot.getParent();
+            if (subtreeRoot.getHeight() == oldHeight) {
+                break;
+            }
+        }
+        for ( ; node != null ; node = node.getParent()) {
+            node.update();
+        }
+    }
+    
+    /**
+     * The rotations that raise node, named for the path down to it from the unbalanced node.
+     */
     void rightRight(Node<T> node) {
-        Node<T> oldParent = swapPlacesWithParent(node);
-        Node<T> oldLeft = node.getLeft();
-        node.setLeft(oldParent);
-        oldParent.setRight(oldLeft);
+        rotated(Subtrees.rotateLeft(node.getParent()));
     }
 
     void rightLeft(Node<T> node) {
-        Node<T> oldParent = swapPlacesWithParent(node);
-        Node<T> oldRight = node.getRight();
-        node.setRight(oldParent);
-        oldParent.setLeft(oldRight);
+        Subtrees.rotateRight(node.getParent());
         rightRight(node);
     }
 
     void leftLeft(Node<T> node) {
-        Node<T> oldParent = swapPlacesWithParent(node);
-        Node<T> oldRight = node.getRight();
-        node.setRight(oldParent);
-        oldParent.setLeft(oldRight);
+        rotated(Subtrees.rotateRight(node.getParent()));
     }
 
     void leftRight(Node<T> node) {
-        Node<T> oldParent = swapPlacesWithParent(node);
-        Node<T> oldLeft = node.getLeft();
-        node.setLeft(oldParent);
-        oldParent.setRight(oldLeft);
+        Subtrees.rotateLeft(node.getParent());
         leftLeft(node);
     }
 
-    private Node<T> swapPlacesWithParent(Node<T> node) {
-        Node<T> oldParent       = node.getParent();
-        Node<T> oldGrandParent  = oldParent.getParent();
-        node.setParent(oldGrandParent);
-        if (oldGrandParent == null) {
-            root = node;
-        } else {
-            oldParent.replace(node, null);
-            oldGrandParent.changePositions(oldParent, node);
+    private void rotated(Node<T> subtreeRoot) {
+        if (subtreeRoot.getParent() == null) {
+            root = subtreeRoot;
         }
-        oldParent.setParent(node);
-        return oldParent;
-    }
-
-    private Node<T> getGrandParent(Node<T> node) {
-        Node<T> parent = node.getParent();
-        if (parent == null) return null;
-        return parent.getParent();
     }
 
+    /**
+     * @return how many items are in the bag, saturating at {@link Integer#MAX_VALUE}
+     * @see #totalWeight()
+     */
     public int size() {
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * @return the total weight of the items, which is how many there are if none were added
+     * with a weight
+     */
+    public long totalWeight() {
         return size;
     }
+    
+    public void clear() {
+        setRoot(null);
+    }
+    
+    /**
+     * Moves all the items of another bag, which must be no smaller than any in this one, into
+     * this one in O(log n) without comparing them. The other bag is left empty.
+     */
+    public void join(AVLTreeBag<T> greater) {
+        if (greater == this) throw new IllegalArgumentException();
+        checkSameOrder(greater);
+        if (greater.root == null) return;
+        Node<T> first = Node.first(greater.root);
+        Node<T> last  = Subtrees.last(root);
+        if (last != null) {
+            int comparison = comparator.compare(last.getItem(), first.getItem());
+            if (comparison > 0) throw new IllegalArgumentException(last.getItem() + " is after " + first.getItem());
+            if (comparison == 0) { // one node for both bags' copies
+                root = Subtrees.removeLast(last);
+                first.setCount(first.getCount() + last.getCount());
+            }
+        }
+        Node<T> rest = Subtrees.removeFirst(first);
+        setRoot(Subtrees.join(root, first, rest));
+        greater.clear();
+    }
+    
+    /**
+     * Moves every item that is greater than or equal to the given one out of this bag in 
+     * O(log n).
+     * @return a new bag of them
+     */
+    public AVLTreeBag<T> split(T item) {
+        if (item == null) throw new IllegalArgumentException();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Node<T>[] parts = new Node[3];
+        Subtrees.split(root, item, comparator, parts);
+        setRoot(parts[0]);
+        return withSameOrder(parts[1] == null ? parts[2] : Subtrees.join(null, parts[1], parts[2]));
+    }
+    
+    /**
+     * Keeps only the rank smallest items in this bag, moving the rest out in O(log n).
+     * @return a new bag of the rest
+     */
+    public AVLTreeBag<T> splitAtRank(long rank) {
+        if (rank < 0 || rank > size) throw new IllegalArgumentException();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Node<T>[] parts = new Node[2];
+        Subtrees.splitAtRank(root, rank, parts);
+        setRoot(parts[0]);
+        return withSameOrder(parts[1]);
+    }
+    
+    /**
+     * Moves all the items of another bag into this one, leaving the other empty. Rather than
+     * add them one by one this splits one tree around the nodes of the other, which takes 
+     * O(m log(n/m + 1)) for m and n >= m distinct items, so at worst linear.
+     */
+    public void merge(AVLTreeBag<T> other) {
+        if (other == this) throw new IllegalArgumentException();
+        checkSameOrder(other);
+        setRoot(Subtrees.union(root, other.root, comparator));
+        other.clear();
+    }
+    
+    /**
+     * Merges many distinct bags, eg one per thread, into a new one in the common {@link ForkJoinPool},
+     * merging pairs of bags and the halves of large merges concurrently. The bags must all be
+     * ordered the same way. They are left empty and none may be changed while this runs.
+     * @throws IllegalArgumentException if they are not ordered the same way
+     */
+    public static <T> AVLTreeBag<T> mergeAll(List<AVLTreeBag<T>> bags) {
+        if (bags.isEmpty()) return new AVLTreeBag<T>();
+        for (AVLTreeBag<T> bag : bags) {
+            bags.get(0).checkSameOrder(bag);
+        }
+        AVLTreeBag<T> merged = bags.get(0).withSameOrder(ForkJoinPool.commonPool().invoke(new MergeTask<T>(bags, 0, bags.size())));
+        for (AVLTreeBag<T> bag : bags) {
+            bag.clear();
+        }
+        return merged;
+    }
+    
+    private static class MergeTask<T> extends RecursiveTask<Node<T>> {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final List<AVLTreeBag<T>>   bags;
+        private final int                   from;
+        private final int                   to;
+        
+        MergeTask(List<AVLTreeBag<T>> bags, int from, int to) {
+            this.bags   = bags;
+            this.from   = from;
+            this.to     = to;
+        }
+
+        @Override
+        protected Node<T> compute() {
+            if (to - from == 1) {
+                return bags.get(from).root;
+            }
+            int middle          = (from + to) >>> 1;
+            MergeTask<T> left   = new MergeTask<T>(bags, from, middle);
+            left.fork();
+            Node<T> right       = new MergeTask<T>(bags, middle, to).compute();
+            return new Subtrees.UnionTask<T>(left.join(), right, bags.get(from).comparator).compute();
+        }
+    }
+    
+    private void setRoot(Node<T> root) {
+        this.root   = root;
+        this.size   = Node.sizeOf(root);
+        this.first  = Node.first(root);
+        this.last   = Subtrees.last(root);
+    }
 
+    /**
+     * @param percentile 0 to 100 inclusive. Rounds up to the next element where the 
+     * percentile falls between two.
+     * @throws NoSuchElementException if the bag is empty
+     */
     public T elementAtPercentile(int percentile) {
+        if (!instrumented) return internalElementAtPercentile(percentile);
+        long start  = System.nanoTime();
+        T item      = internalElementAtPercentile(percentile);
+        completed(Operation.PERCENTILE, start);
+        return item;
+    }
+    
+    private T internalElementAtPercentile(int percentile) {
         if (percentile > 100 || percentile < 0) throw new IllegalArgumentException();
+        if (size == 0) throw new NoSuchElementException("empty");
         
-        Node<T> node = root;
-        
-        int index = size * percentile / 100;
-        
-        int numChildrenToLeft = 0;
-        while (node.getNumberOfChildren() != 0) {
-            int numToLeft = numberOfChildrenToLeft(node);
-            if (numChildrenToLeft + 1 == index) { // + 1 because we include self
+        return elementAtRank(indexAtPercentile(percentile));
+    }
+    
+    /**
+     * @param index counting from 0
+     */
+    T elementAtRank(long index) {
+        Node<T> node    = root;
+        int depth       = 0;
+        while (true) {
+            depth++;
+            long numToLeft = Node.sizeOf(node.getLeft());
+            if (index < numToLeft) {
+                node = node.getLeft();
+            } else if (index < numToLeft + node.getCount()) {
+                if (instrumented) metrics.descended(depth);
+                return node.getItem();
+            } else {
+                index -= numToLeft + node.getCount(); // include self
+                node = node.getRight();
+            }
+        }
+    }
+
+    /**
+     * @return how many items are less than or equal to the given item, which is the rank 
+     * (counting from 1) of its last occurrence if it is in the bag
+     */
+    public long rank(T item) {
+        return countBelow(item, true);
+    }
+    
+    /**
+     * @return how many items are strictly less than the given item
+     */
+    public long countLessThan(T item) {
+        return countBelow(item, false);
+    }
+    
+    /**
+     * @return how many items are between from and to, both inclusive
+     */
+    public long countBetween(T from, T to) {
+        if (from == null || to == null) throw new IllegalArgumentException();
+        if (comparator.compare(from, to) > 0) throw new IllegalArgumentException(from + " is after " + to);
+        return countBelow(to, true) - countBelow(from, false);
+    }
+    
+    /**
+     * The inverse of {@link #elementAtPercentile(int)}, eg the percentage of requests that
+     * were faster than an SLO.
+     * @return the percentage, 0 to 100, of items strictly less than the given item or NaN if empty
+     */
+    public double percentileOf(T item) {
+        long below = countLessThan(item);
+        return size == 0 ? Double.NaN : 100d * below / size;
+    }
+    
+    /**
+     * @return the least item, in O(1)
+     * @throws NoSuchElementException if the bag is empty
+     */
+    public T first() {
+        if (first == null) throw new NoSuchElementException();
+        return first.getItem();
+    }
+    
+    /**
+     * @return the greatest item, in O(1)
+     * @throws NoSuchElementException if the bag is empty
+     */
+    public T last() {
+        if (last == null) throw new NoSuchElementException();
+        return last.getItem();
+    }
+    
+    /**
+     * Removes one of the least items.
+     * @return it, or null if the bag is empty
+     */
+    public T pollFirst() {
+        Node<T> node = first;
+        if (node == null) return null;
+        long start = instrumented ? System.nanoTime() : 0;
+        remove(node);
+        if (instrumented) completed(Operation.REMOVE, start);
+        return node.getItem();
+    }
+    
+    /**
+     * Removes one of the greatest items.
+     * @return it, or null if the bag is empty
+     */
+    public T pollLast() {
+        Node<T> node = last;
+        if (node == null) return null;
+        long start = instrumented ? System.nanoTime() : 0;
+        remove(node);
+        if (instrumented) completed(Operation.REMOVE, start);
+        return node.getItem();
+    }
+    
+    /**
+     * @return the greatest item less than or equal to the given one, or null if there is none
+     */
+    public T floor(T item) {
+        return itemOf(nearest(item, true, true));
+    }
+    
+    /**
+     * @return the greatest item strictly less than the given one, or null if there is none
+     */
+    public T lower(T item) {
+        return itemOf(nearest(item, true, false));
+    }
+    
+    /**
+     * @return the least item greater than or equal to the given one, or null if there is none
+     */
+    public T ceiling(T item) {
+        return itemOf(nearest(item, false, true));
+    }
+    
+    /**
+     * @return the least item strictly greater than the given one, or null if there is none
+     */
+    public T higher(T item) {
+        return itemOf(nearest(item, false, false));
+    }
+    
+    /**
+     * @param below whether to look for the nearest item below the given one rather than above it
+     * @param inclusive whether an equal item counts as nearest
+     */
+    private Node<T> nearest(T item, boolean below, boolean inclusive) {
+        if (item == null) throw new IllegalArgumentException();
+        long start      = instrumented ? System.nanoTime() : 0;
+        long key        = keyOf(item);
+        Node<T> node    = root;
+        Node<T> found   = null;
+        int depth       = 0;
+        while (node != null) {
+            depth++;
+            int comparison = compare(item, key, node);
+            if (comparison == 0 && inclusive) {
+                found = node;
                 break;
             }
-            Node<T> child = null;
-            int totalToLeft = numChildrenToLeft + numToLeft;
-            if (totalToLeft < index) {
-                child = node.getRight();
-                numChildrenToLeft += numToLeft;
-            } else { 
-                child = node.getLeft();
+            if (below ? comparison > 0 : comparison < 0) {
+                found   = node; // on the right side of the item, so a candidate
+                node    = below ? node.getRight() : node.getLeft();
+            } else {
+                node    = below ? node.getLeft() : node.getRight();
             }
-            numChildrenToLeft++; // include this node
-            if (child == null) {
+        }
+        if (instrumented) {
+            metrics.descended(depth);
+            completed(Operation.SEARCH, start);
+        }
+        return found;
+    }
+    
+    private static <T> T itemOf(Node<T> node) {
+        return node == null ? null : node.getItem();
+    }
+    
+    /**
+     * @return a live view of the items less than (or, if inclusive, equal to) the given one
+     */
+    public AVLTreeBagView<T> headBag(T to, boolean inclusive) {
+        return new AVLTreeBagView<T>(this, null, false, to, inclusive);
+    }
+    
+    /**
+     * @return a live view of the items greater than (or, if inclusive, equal to) the given one
+     */
+    public AVLTreeBagView<T> tailBag(T from, boolean inclusive) {
+        return new AVLTreeBagView<T>(this, from, inclusive, null, false);
+    }
+    
+    /**
+     * @return a live view of the items between the given ones
+     */
+    public AVLTreeBagView<T> subBag(T from, boolean fromInclusive, T to, boolean toInclusive) {
+        return new AVLTreeBagView<T>(this, from, fromInclusive, to, toInclusive);
+    }
+    
+    /**
+     * @return how many items are less than (or, if inclusive, equal to) the given item
+     */
+    long countBelow(T item, boolean inclusive) {
+        if (item == null) throw new IllegalArgumentException();
+        long start      = instrumented ? System.nanoTime() : 0;
+        long key        = keyOf(item);
+        Node<T> node    = root;
+        long count      = 0;
+        int depth       = 0;
+        while (node != null) {
+            depth++;
+            int comparison = compare(item, key, node);
+            if (comparison < 0) {
+                node = node.getLeft();
+            } else if (comparison > 0) {
+                count += Node.sizeOf(node.getLeft()) + node.getCount();
+                node = node.getRight();
+            } else {
+                count += Node.sizeOf(node.getLeft()) + (inclusive ? node.getCount() : 0);
                 break;
             }
-            node = child;
+        }
+        if (instrumented) {
+            metrics.descended(depth);
+            completed(Operation.SEARCH, start);
+        }
+        return count;
+    }
+    
+    /**
+     * Answers all the percentiles in a single walk of the tree that visits each node on the 
+     * paths to the answers just once.
+     * @param percentiles each 0 to 100 inclusive, fractions allowed, in any order
+     * @return the elements in the same order as the percentiles
+     * @see #elementAtPercentile(int)
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> elementsAtPercentiles(double... percentiles) {
+        if (percentiles.length > 0 && size == 0) throw new NoSuchElementException("empty");
+        long start      = instrumented ? System.nanoTime() : 0;
+        long[] ranks    = new long[percentiles.length];
+        for (int i = 0 ; i < percentiles.length ; i++) {
+            ranks[i] = indexAtPercentile(percentiles[i]);
+        }
+        long[] sorted   = ranks.clone();
+        Arrays.sort(sorted);
+        int distinct    = 0;
+        for (int i = 0 ; i < sorted.length ; i++) {
+            if (i == 0 || sorted[i] != sorted[distinct - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
         }
         
-        return node.getItem();
+        Object[] found = new Object[distinct];
+        elementsAt(root, sorted, 0, distinct, 0, found);
+        Object[] elements = new Object[percentiles.length];
+        for (int i = 0 ; i < percentiles.length ; i++) {
+            elements[i] = found[Arrays.binarySearch(sorted, 0, distinct, ranks[i])];
+        }
+        if (instrumented) completed(Operation.PERCENTILE, start);
+        return (List<T>) (List<?>) Arrays.asList(elements);
+    }
+    
+    private long indexAtPercentile(int percentile) {
+        return Math.min((size * percentile + 99) / 100, size - 1);
+    }
+    
+    private long indexAtPercentile(double percentile) {
+        if (!(percentile >= 0 && percentile <= 100)) throw new IllegalArgumentException();
+        double exact    = size * percentile / 100;
+        double rounded  = Math.rint(exact);
+        // don't let the inexactness of, say, 99.9 push an exact index up to the next element
+        double index    = Math.abs(exact - rounded) < 1e-9 * Math.max(1, exact) ? rounded : Math.ceil(exact);
+        return (long) Math.min(index, size - 1);
+    }
+    
+    /**
+     * @param ranks distinct and sorted
+     * @param offset the number of elements to the left of the subtree
+     * @param elements filled with the element at each rank
+     */
+    private void elementsAt(Node<T> node, long[] ranks, int from, int to, long offset, Object[] elements) {
+        while (from < to) {
+            long first      = offset + Node.sizeOf(node.getLeft());
+            long next       = first + node.getCount();
+            int atNode      = firstAtOrAfter(ranks, from, to, first);
+            if (atNode > from) {
+                elementsAt(node.getLeft(), ranks, from, atNode, offset, elements);
+            }
+            while (atNode < to && ranks[atNode] < next) {
+                elements[atNode] = node.getItem();
+                atNode++;
+            }
+            from    = atNode;
+            offset  = next;
+            node    = node.getRight();
+        }
+    }
+    
+    private static int firstAtOrAfter(long[] sorted, int from, int to, long key) {
+        int found = Arrays.binarySearch(sorted, from, to, key);
+        return found >= 0 ? found : -(found + 1);
+    }
+
+    /**
+     * Iterates in ascending order, repeating duplicates, by following the nodes' parent links
+     * so there is no stack and nothing is allocated per element. Not fail-fast: the bag must
+     * not be changed during iteration other than through {@link Iterator#remove()}.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new InOrderIterator();
+    }
+    
+    /**
+     * Visits the items in ascending order, repeating duplicates, without allocating anything.
+     */
+    @Override
+    public void forEach(Consumer<? super T> action) {
+        for (Node<T> node = Node.first(root) ; node != null ; node = node.successor()) {
+            for (long i = node.getCount() ; i > 0 ; i--) {
+                action.accept(node.getItem());
+            }
+        }
+    }
+    
+    /**
+     * Splits by rank using the subtree sizes, so a parallel stream over the bag divides it 
+     * into evenly sized parts in O(log n) per split.
+     */
+    @Override
+    public Spliterator<T> spliterator() {
+        return new RankSpliterator(0, size);
+    }
+    
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+    
+    /**
+     * @param from the rank, counting from 0, of the first item
+     * @param to the rank after the last
+     */
+    Spliterator<T> spliterator(long from, long to) {
+        return new RankSpliterator(from, to);
+    }
+    
+    private class InOrderIterator implements Iterator<T> {
+        
+        private Node<T> next        = Node.first(root);
+        private long    returned;   // of next's items
+        private Node<T> lastReturned;
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (next == null) throw new NoSuchElementException();
+            lastReturned = next;
+            if (++returned == next.getCount()) {
+                next        = next.successor();
+                returned    = 0;
+            }
+            return lastReturned.getItem();
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null) throw new IllegalStateException();
+            if (lastReturned == next) {
+                returned--; // one fewer left to return of the same run
+            }
+            AVLTreeBag.this.remove(lastReturned);
+            lastReturned = null;
+        }
     }
     
-    private int numberOfChildrenToLeft(Node<T> node) {
-        Node<T> leftChild = node.getLeft();
-        return leftChild == null ? 0 : leftChild.getNumberOfChildren();
+    private class RankSpliterator implements Spliterator<T> {
+        
+        private long        from;   // inclusive
+        private final long  to;     // exclusive
+        private Node<T>     node;   // holding the item ranked from, found lazily
+        private long        offset; // into node's run of items
+        
+        RankSpliterator(long from, long to) {
+            this.from   = from;
+            this.to     = to;
+        }
+        
+        private void findFrom() {
+            long index  = from;
+            node        = root;
+            while (true) {
+                long numToLeft = Node.sizeOf(node.getLeft());
+                if (index < numToLeft) {
+                    node = node.getLeft();
+                } else if (index < numToLeft + node.getCount()) {
+                    offset = index - numToLeft;
+                    return;
+                } else {
+                    index -= numToLeft + node.getCount();
+                    node = node.getRight();
+                }
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (from >= to) return false;
+            if (node == null) {
+                findFrom();
+            }
+            action.accept(node.getItem());
+            from++;
+            if (++offset == node.getCount()) {
+                node    = node.successor();
+                offset  = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            while (tryAdvance(action)) {
+                // keep going
+            }
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            if (to - from < 2) return null;
+            long middle = (from + to) >>> 1;
+            RankSpliterator prefix  = new RankSpliterator(from, middle);
+            prefix.node             = node;
+            prefix.offset           = offset;
+            from                    = middle;
+            node                    = null;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return to - from;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SORTED | SIZED | SUBSIZED | NONNULL;
+        }
+
+        @Override
+        public Comparator<? super T> getComparator() {
+            return comparator == NATURAL_ORDER ? null : comparator;
+        }
     }
 
     Node<T> getRoot() {
@@ -0,0 +1,175 @@
+package com.google.code.jstructure.avltree;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Saves an {@link AVLTreeBag} to, and loads it from, a compact binary format.
+ * <p>
+ * Items are written as long keys, so the caller supplies an encoder that maps items to keys in
+ * the same order (eg {@link Long#longValue()} or the bits of a latency) and a decoder back again.
+ * After a fixed header come the distinct keys in ascending order. The first is written as a
+ * zig-zag varint and each one after it as the unsigned varint of its difference from the one
+ * before. If any item occurs more than once, each key is followed by the varint of its count.
+ * Only bags in the items' natural order can be saved, as that is the order they are loaded in.
+ * <p>
+ * Loading memory maps the file, decodes the runs of items into arrays and builds a balanced
+ * tree from them without any comparisons or rotations, in linear time.
+ */
+public final class AVLTreeBagSnapshot {
+
+    static final int    MAGIC           = 0x4A534241; // "JSBA"
+
+    static final int    VERSION         = 1;
+
+    static final int    FLAG_COUNTS     = 1;
+
+    static final int    HEADER_LENGTH   = 4 + 4 + 4 + 4 + 8; // magic, version, flags, distinct, size
+
+    private static final int MAX_RECORD = 2 * 10; // two varints
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final long MAP_WINDOW = 1 << 30;
+
+    private AVLTreeBagSnapshot() {
+    }
+
+    public static <T extends Comparable<T>> void write(AVLTreeBag<T> bag, ToLongFunction<? super T> encoder, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(bag, encoder, channel);
+        }
+    }
+
+    /**
+     * @param encoder must map distinct items to distinct keys in the same order
+     * @throws IllegalArgumentException if the bag is ordered by a comparator or key
+     */
+    public static <T extends Comparable<T>> void write(AVLTreeBag<T> bag, ToLongFunction<? super T> encoder, WritableByteChannel channel) throws IOException {
+        if (!bag.isNaturallyOrdered()) throw new IllegalArgumentException("only bags in natural order can be saved");
+        int distinct    = 0;
+        int flags       = 0;
+        for (Node<T> node = Node.first(bag.getRoot()) ; node != null ; node = node.successor()) {
+            distinct++;
+            if (node.getCount() > 1) {
+                flags |= FLAG_COUNTS;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(flags).putInt(distinct).putLong(bag.totalWeight());
+
+        long previous   = 0;
+        boolean first   = true;
+        for (Node<T> node = Node.first(bag.getRoot()) ; node != null ; node = node.successor()) {
+            if (buffer.remaining() < MAX_RECORD) {
+                drain(buffer, channel);
+            }
+            long key = encoder.applyAsLong(node.getItem());
+            if (first) {
+                putVarint(buffer, (key << 1) ^ (key >> 63));
+                first = false;
+            } else if (key > previous) {
+                putVarint(buffer, key - previous); // exact as an unsigned long
+            } else {
+                throw new IllegalArgumentException("encoder does not preserve order at " + node.getItem());
+            }
+            if ((flags & FLAG_COUNTS) != 0) {
+                putVarint(buffer, node.getCount());
+            }
+            previous = key;
+        }
+        drain(buffer, channel);
+    }
+
+    private static void drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Unsigned LEB128: seven bits at a time, least significant first, with the top bit set on
+     * all but the last byte.
+     */
+    static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0 ; shift < 64 ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /**
+     * @param decoder the inverse of the encoder the snapshot was written with
+     */
+    public static <T extends Comparable<T>> AVLTreeBag<T> read(Path path, LongFunction<? extends T> decoder) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_LENGTH) throw new IOException("not a snapshot: " + path);
+            MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, Math.min(length, MAP_WINDOW));
+            if (buffer.getInt() != MAGIC) throw new IOException("not a snapshot: " + path);
+            int version = buffer.getInt();
+            if (version != VERSION) throw new IOException("unsupported version " + version);
+            int flags       = buffer.getInt();
+            int distinct    = buffer.getInt();
+            long size       = buffer.getLong();
+            if (distinct < 0 || size < distinct) throw new IOException("corrupt header");
+            boolean hasCounts = (flags & FLAG_COUNTS) != 0;
+            if (distinct > (length - HEADER_LENGTH) / (hasCounts ? 2 : 1)) throw new IOException("corrupt header: " + distinct + " items cannot fit in " + length + " bytes");
+
+            Object[] items  = new Object[distinct];
+            long[] counts   = new long[distinct];
+            long position   = 0; // of the mapped window in the file
+            long key        = 0;
+            long total      = 0;
+            try {
+                for (int i = 0 ; i < distinct ; i++) {
+                    if (buffer.remaining() < MAX_RECORD && position + buffer.limit() < length) {
+                        position    += buffer.position();
+                        buffer      = channel.map(MapMode.READ_ONLY, position, Math.min(length - position, MAP_WINDOW));
+                    }
+                    if (i == 0) {
+                        long zigZag = getVarint(buffer);
+                        key         = (zigZag >>> 1) ^ -(zigZag & 1);
+                    } else {
+                        long delta = getVarint(buffer);
+                        if (delta == 0) throw new IOException("corrupt key at " + i);
+                        key += delta;
+                    }
+                    items[i]    = decoder.apply(key);
+                    counts[i]   = hasCounts ? getVarint(buffer) : 1;
+                    if (counts[i] < 1) throw new IOException("corrupt count at " + i);
+                    total       += counts[i];
+                }
+            } catch (BufferUnderflowException x) {
+                throw new IOException("truncated snapshot: " + path, x);
+            }
+            if (total != size) throw new IOException("corrupt snapshot: expected " + size + " items but found " + total);
+            return new AVLTreeBag<T>(AVLTreeBag.<T>buildFromRuns(items, counts, distinct, true));
+        }
+    }
+
+}
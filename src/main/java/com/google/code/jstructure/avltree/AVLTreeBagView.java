@@ -0,0 +1,144 @@
+package com.google.code.jstructure.avltree;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.google.code.jstructure.PercentileBag;
+
+/**
+ * The items of an {@link AVLTreeBag} within a range, eg the requests slower than an SLO. It
+ * is a live view rather than a copy: changes to the bag are seen by the view and items added
+ * or removed through the view go into or out of the bag.
+ * <p>
+ * A view holds only its bounds. Its size and percentiles are found from the ranks of the
+ * bounds in the bag, so each costs O(log n) however many items are in range.
+ *
+ * @see AVLTreeBag#subBag(Object, boolean, Object, boolean)
+ */
+public class AVLTreeBagView<T> implements PercentileBag<T>, Iterable<T> {
+
+    private final AVLTreeBag<T> bag;
+    private final T             from;   // null if unbounded
+    private final boolean       fromInclusive;
+    private final T             to;     // null if unbounded
+    private final boolean       toInclusive;
+
+    AVLTreeBagView(AVLTreeBag<T> bag, T from, boolean fromInclusive, T to, boolean toInclusive) {
+        if (from != null && to != null && bag.comparator().compare(from, to) > 0) throw new IllegalArgumentException(from + " is after " + to);
+        this.bag            = bag;
+        this.from           = from;
+        this.fromInclusive  = fromInclusive;
+        this.to             = to;
+        this.toInclusive    = toInclusive;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the item is out of range
+     */
+    @Override
+    public void add(T item) {
+        if (!inRange(item)) throw new IllegalArgumentException(item + " is out of range");
+        bag.add(item);
+    }
+
+    /**
+     * @return false if the item is out of range or not in the bag
+     */
+    public boolean remove(T item) {
+        return inRange(item) && bag.remove(item);
+    }
+
+    private boolean inRange(T item) {
+        if (item == null) throw new IllegalArgumentException();
+        Comparator<? super T> comparator = bag.comparator();
+        if (from != null) {
+            int comparison = comparator.compare(item, from);
+            if (comparison < 0 || (comparison == 0 && !fromInclusive)) return false;
+        }
+        if (to != null) {
+            int comparison = comparator.compare(item, to);
+            if (comparison > 0 || (comparison == 0 && !toInclusive)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the rank in the bag, counting from 0, of the first item in range
+     */
+    private long start() {
+        return from == null ? 0 : bag.countBelow(from, !fromInclusive);
+    }
+
+    /**
+     * @return the rank in the bag of the item after the last in range
+     */
+    private long end() {
+        return to == null ? bag.totalWeight() : bag.countBelow(to, toInclusive);
+    }
+
+    /**
+     * @return how many items are in range, saturating at {@link Integer#MAX_VALUE}
+     */
+    @Override
+    public int size() {
+        return (int) Math.min(totalWeight(), Integer.MAX_VALUE);
+    }
+
+    public long totalWeight() {
+        return Math.max(end() - start(), 0);
+    }
+
+    /**
+     * @see AVLTreeBag#elementAtPercentile(int)
+     */
+    @Override
+    public T elementAtPercentile(int percentile) {
+        if (percentile > 100 || percentile < 0) throw new IllegalArgumentException();
+        long start  = start();
+        long size   = end() - start;
+        if (size <= 0) throw new NoSuchElementException("empty");
+        return bag.elementAtRank(start + Math.min((size * percentile + 99) / 100, size - 1));
+    }
+
+    /**
+     * @throws NoSuchElementException if there are no items in range
+     */
+    public T first() {
+        T first = from == null ? bag.first() : fromInclusive ? bag.ceiling(from) : bag.higher(from);
+        if (first == null || !inRange(first)) throw new NoSuchElementException();
+        return first;
+    }
+
+    /**
+     * @throws NoSuchElementException if there are no items in range
+     */
+    public T last() {
+        T last = to == null ? bag.last() : toInclusive ? bag.floor(to) : bag.lower(to);
+        if (last == null || !inRange(last)) throw new NoSuchElementException();
+        return last;
+    }
+
+    /**
+     * Iterates in ascending order over the items in range when this is called.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    @Override
+    public Spliterator<T> spliterator() {
+        long start = start();
+        return bag.spliterator(start, Math.max(end(), start));
+    }
+
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.google.code.jstructure.avltree;
+
+import com.google.code.jstructure.PercentileBag;
+import com.google.code.jstructure.kll.KllSketch;
+
+/**
+ * Starts out as an exact {@link AVLTreeBag} and, once it holds more than a threshold number of
+ * samples, moves them all into an approximate {@link KllSketch} so memory stops growing.
+ */
+public class AdaptivePercentileBag<T extends Comparable<T>> implements PercentileBag<T> {
+
+    private final int       threshold;
+    private final double    rankError;
+
+    private AVLTreeBag<T>   exact = new AVLTreeBag<T>();
+    private KllSketch<T>    approximate;
+
+    /**
+     * @param threshold the most samples held exactly
+     * @param rankError of the sketch used beyond that
+     * @see KllSketch#withRankError(double)
+     */
+    public AdaptivePercentileBag(int threshold, double rankError) {
+        if (threshold < 0 || !(rankError > 0 && rankError < 1)) throw new IllegalArgumentException();
+        this.threshold  = threshold;
+        this.rankError  = rankError;
+    }
+
+    @Override
+    public void add(T item) {
+        if (approximate != null) {
+            approximate.add(item);
+            return;
+        }
+        exact.add(item);
+        if (exact.size() > threshold) {
+            approximate = KllSketch.withRankError(rankError);
+            addAll(exact.getRoot());
+            exact = null;
+        }
+    }
+
+    private void addAll(Node<T> node) {
+        while (node != null) {
+            addAll(node.getLeft());
+            for (long i = 0 ; i < node.getCount() ; i++) {
+                approximate.add(node.getItem());
+            }
+            node = node.getRight();
+        }
+    }
+
+    public boolean isExact() {
+        return approximate == null;
+    }
+
+    @Override
+    public int size() {
+        return isExact() ? exact.size() : approximate.size();
+    }
+
+    @Override
+    public T elementAtPercentile(int percentile) {
+        return isExact() ? exact.elementAtPercentile(percentile) : approximate.elementAtPercentile(percentile);
+    }
+
+}
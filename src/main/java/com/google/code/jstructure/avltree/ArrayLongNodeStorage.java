@@ -0,0 +1,120 @@
+package com.google.code.jstructure.avltree;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the nodes in parallel on-heap arrays. Each node costs 40 bytes and the garbage
+ * collector sees only seven arrays, however large the bag.
+ */
+public class ArrayLongNodeStorage extends LongNodeStorage {
+    
+    private long[]  items;
+    private int[]   lefts;
+    private int[]   rights;
+    private int[]   parents;
+    private int[]   heights;
+    private long[]  counts;
+    private long[]  sizes;
+    
+    public ArrayLongNodeStorage() {
+        this(16);
+    }
+    
+    public ArrayLongNodeStorage(int initialCapacity) {
+        if (initialCapacity < 1) throw new IllegalArgumentException();
+        items   = new long[initialCapacity];
+        lefts   = new int[initialCapacity];
+        rights  = new int[initialCapacity];
+        parents = new int[initialCapacity];
+        heights = new int[initialCapacity];
+        counts  = new long[initialCapacity];
+        sizes   = new long[initialCapacity];
+    }
+
+    @Override
+    long getItem(int node) {
+        return items[node];
+    }
+
+    @Override
+    int getLeft(int node) {
+        return lefts[node];
+    }
+
+    @Override
+    int getRight(int node) {
+        return rights[node];
+    }
+
+    @Override
+    int getParent(int node) {
+        return parents[node];
+    }
+
+    @Override
+    int getHeight(int node) {
+        return heights[node];
+    }
+
+    @Override
+    long getCount(int node) {
+        return counts[node];
+    }
+
+    @Override
+    long getSize(int node) {
+        return sizes[node];
+    }
+
+    @Override
+    void setItem(int node, long item) {
+        items[node] = item;
+    }
+
+    @Override
+    void setLeft(int node, int left) {
+        lefts[node] = left;
+    }
+
+    @Override
+    void setRight(int node, int right) {
+        rights[node] = right;
+    }
+
+    @Override
+    void setParent(int node, int parent) {
+        parents[node] = parent;
+    }
+
+    @Override
+    void setHeight(int node, int height) {
+        heights[node] = height;
+    }
+
+    @Override
+    void setCount(int node, long count) {
+        counts[node] = count;
+    }
+
+    @Override
+    void setSize(int node, long size) {
+        sizes[node] = size;
+    }
+
+    @Override
+    int capacity() {
+        return items.length;
+    }
+
+    @Override
+    void grow(int minCapacity) {
+        int capacity = grownCapacity(items.length, minCapacity);
+        items   = Arrays.copyOf(items, capacity);
+        lefts   = Arrays.copyOf(lefts, capacity);
+        rights  = Arrays.copyOf(rights, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        heights = Arrays.copyOf(heights, capacity);
+        counts  = Arrays.copyOf(counts, capacity);
+        sizes   = Arrays.copyOf(sizes, capacity);
+    }
+}
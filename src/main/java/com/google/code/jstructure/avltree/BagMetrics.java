@@ -0,0 +1,42 @@
+package com.google.code.jstructure.avltree;
+
+/**
+ * Told what an {@link AVLTreeBag} does so its behaviour under a real load can be seen, eg to
+ * correlate tail latency with the shape of the tree. Implementations are called on the bag's
+ * hot paths so should be cheap and, if the bag is shared, thread safe.
+ * @see CountingBagMetrics
+ */
+public interface BagMetrics {
+    
+    enum Rotation { RIGHT_RIGHT, RIGHT_LEFT, LEFT_LEFT, LEFT_RIGHT }
+    
+    /**
+     * SEARCH is any query that looks for an item, eg floor or rank. A bulk add or query counts
+     * as one operation.
+     */
+    enum Operation { ADD, REMOVE, PERCENTILE, SEARCH }
+    
+    /**
+     * The bag does nothing at all for metrics when given this.
+     */
+    BagMetrics NONE = new BagMetrics() {
+        public void rotated(Rotation rotation) { }
+        public void descended(int depth) { }
+        public void completed(Operation operation, long nanos, int size, int height) { }
+    };
+    
+    void rotated(Rotation rotation);
+    
+    /**
+     * @param depth how many nodes were visited looking for an item, each of which it was
+     * compared with once, or for a rank
+     */
+    void descended(int depth);
+    
+    /**
+     * @param size of the bag afterwards
+     * @param height of the tree afterwards
+     */
+    void completed(Operation operation, long nanos, int size, int height);
+    
+}
@@ -0,0 +1,185 @@
+package com.google.code.jstructure.avltree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.google.code.jstructure.PercentileBag;
+import com.google.code.jstructure.avltree.PersistentAVLTreeBag.Version;
+
+/**
+ * A thread safe {@link AVLTreeBag}. Items are spread over a number of stripes, each a
+ * {@link PersistentAVLTreeBag}, and a thread always adds to the same stripe so writers on
+ * different threads rarely contend for the compare-and-set that publishes a stripe's new root.
+ * <p>
+ * Reads take no locks and never retry. They read the root of each stripe, an immutable
+ * version that writers never change, and select from those. The stripes are read one after
+ * another, so a read sees every item added to a stripe before it read that stripe, and an item
+ * added during the read may or may not be seen.
+ */
+public class ConcurrentAVLTreeBag<T extends Comparable<T>> implements PercentileBag<T> {
+
+    private final List<PersistentAVLTreeBag<T>> stripes;
+    private final int                           mask;
+
+    public ConcurrentAVLTreeBag() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ConcurrentAVLTreeBag(int concurrency) {
+        if (concurrency < 1) throw new IllegalArgumentException();
+        int numStripes  = Integer.highestOneBit(concurrency - 1) << 1;
+        numStripes      = Math.max(numStripes, 1);
+        stripes         = new ArrayList<PersistentAVLTreeBag<T>>(numStripes);
+        for (int i = 0 ; i < numStripes ; i++) {
+            stripes.add(new PersistentAVLTreeBag<T>());
+        }
+        mask = numStripes - 1;
+    }
+
+    public void add(T item) {
+        stripes.get(stripeForThisThread()).add(item);
+    }
+
+    /**
+     * Looks in this thread's stripe first and then in the others.
+     */
+    public boolean remove(T item) {
+        int first = stripeForThisThread();
+        for (int i = 0 ; i < stripes.size() ; i++) {
+            if (stripes.get((first + i) & mask).remove(item)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        long size = 0;
+        for (PersistentAVLTreeBag<T> stripe : stripes) {
+            size += PersistentAVLTreeBag.sizeOf(stripe.getRoot());
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @see AVLTreeBag#elementAtPercentile(int)
+     */
+    public T elementAtPercentile(int percentile) {
+        if (percentile > 100 || percentile < 0) throw new IllegalArgumentException();
+        List<Version<T>> roots  = new ArrayList<Version<T>>(stripes.size());
+        long size               = 0;
+        for (PersistentAVLTreeBag<T> stripe : stripes) {
+            Version<T> root = stripe.getRoot();
+            roots.add(root);
+            size += PersistentAVLTreeBag.sizeOf(root);
+        }
+        if (size == 0) throw new NoSuchElementException("empty");
+        return elementAt(roots, Math.min((size * percentile + 99) / 100, size - 1));
+    }
+
+    /**
+     * Finds the element with the given rank across all stripes by a binary search in rank
+     * space. Each stripe has a range of ranks the element may be at. Every round takes the
+     * middle element of each range, weighs it by the length of its range and counts, in each
+     * stripe, the items either side of the weighted median of them. That median is either the
+     * element or rules out at least a quarter of the candidates left, so it takes O(log n)
+     * rounds of O(stripes) descents.
+     */
+    private static <T extends Comparable<T>> T elementAt(List<Version<T>> roots, long index) {
+        int numStripes          = roots.size();
+        long[] lows             = new long[numStripes];
+        long[] highs            = new long[numStripes];
+        long[] lessThans        = new long[numStripes];
+        long[] equals           = new long[numStripes];
+        List<Middle<T>> middles = new ArrayList<Middle<T>>(numStripes);
+        for (int i = 0 ; i < numStripes ; i++) {
+            highs[i] = PersistentAVLTreeBag.sizeOf(roots.get(i));
+            middles.add(new Middle<T>());
+        }
+        while (true) {
+            int candidates  = 0;
+            long remaining  = 0;
+            for (int i = 0 ; i < numStripes ; i++) {
+                long width = highs[i] - lows[i];
+                if (width > 0) {
+                    Middle<T> middle    = middles.get(candidates++);
+                    middle.item         = PersistentAVLTreeBag.elementAt(roots.get(i), (lows[i] + highs[i]) >>> 1);
+                    middle.weight       = width;
+                    remaining           += width;
+                }
+            }
+            Collections.sort(middles.subList(0, candidates));
+            int median      = 0;
+            long weight     = middles.get(0).weight;
+            while (2 * weight < remaining) {
+                weight += middles.get(++median).weight;
+            }
+            T pivot = middles.get(median).item;
+
+            long lessThan   = 0;
+            long atMost     = 0;
+            for (int i = 0 ; i < numStripes ; i++) {
+                countAround(roots.get(i), pivot, lessThans, equals, i);
+                lessThan    += lessThans[i];
+                atMost      += lessThans[i] + equals[i];
+            }
+            if (index < lessThan) {
+                for (int i = 0 ; i < numStripes ; i++) {
+                    highs[i] = Math.min(highs[i], lessThans[i]);
+                }
+            } else if (index >= atMost) {
+                for (int i = 0 ; i < numStripes ; i++) {
+                    lows[i] = Math.max(lows[i], lessThans[i] + equals[i]);
+                }
+            } else {
+                return pivot;
+            }
+        }
+    }
+
+    /**
+     * Counts, in one descent, how many items are less than and how many equal to the given
+     * one, into the arrays at the given index.
+     */
+    private static <T extends Comparable<T>> void countAround(Version<T> node, T item, long[] lessThans, long[] equals, int index) {
+        long lessThan   = 0;
+        long equal      = 0;
+        while (node != null) {
+            int comparison = item.compareTo(node.item);
+            if (comparison < 0) {
+                node = node.left;
+            } else if (comparison > 0) {
+                lessThan    += PersistentAVLTreeBag.sizeOf(node.left) + node.count;
+                node        = node.right;
+            } else {
+                lessThan    += PersistentAVLTreeBag.sizeOf(node.left);
+                equal       = node.count;
+                break;
+            }
+        }
+        lessThans[index]    = lessThan;
+        equals[index]       = equal;
+    }
+
+    private static final class Middle<T extends Comparable<T>> implements Comparable<Middle<T>> {
+
+        T       item;
+        long    weight;
+
+        @Override
+        public int compareTo(Middle<T> other) {
+            return item.compareTo(other.item);
+        }
+    }
+
+    private int stripeForThisThread() {
+        return (int) Thread.currentThread().getId() & mask;
+    }
+
+    List<PersistentAVLTreeBag<T>> getStripes() {
+        return stripes;
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.google.code.jstructure.avltree;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts rotations and descents and keeps histograms of the depth of descents and
+ * of the latency of each operation, with power of two buckets. Operations that take longer
+ * than a threshold are also recorded as JFR {@link SlowOperationEvent}s.
+ */
+public class CountingBagMetrics implements BagMetrics {
+    
+    private static final int BUCKETS = 64;
+    
+    private final long          slowNanos;
+    
+    private final LongAdder[]   rotations   = adders(Rotation.values().length);
+    private final LongAdder     descents    = new LongAdder();
+    private final AtomicLongArray depths    = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray[] latencies = new AtomicLongArray[Operation.values().length];
+    
+    public CountingBagMetrics() {
+        this(Long.MAX_VALUE);
+    }
+    
+    /**
+     * @param slowNanos operations taking longer than this are recorded as JFR events
+     */
+    public CountingBagMetrics(long slowNanos) {
+        if (slowNanos < 0) throw new IllegalArgumentException();
+        this.slowNanos = slowNanos;
+        for (int i = 0 ; i < latencies.length ; i++) {
+            latencies[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+    
+    private static LongAdder[] adders(int length) {
+        LongAdder[] adders = new LongAdder[length];
+        for (int i = 0 ; i < length ; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+    
+    @Override
+    public void rotated(Rotation rotation) {
+        rotations[rotation.ordinal()].increment();
+    }
+    
+    @Override
+    public void descended(int depth) {
+        descents.increment();
+        depths.incrementAndGet(Math.min(depth, BUCKETS - 1));
+    }
+    
+    @Override
+    public void completed(Operation operation, long nanos, int size, int height) {
+        latencies[operation.ordinal()].incrementAndGet(bucketOf(nanos));
+        if (nanos > slowNanos) {
+            SlowOperationEvent event = new SlowOperationEvent();
+            if (event.shouldCommit()) {
+                event.operation = operation.name();
+                event.nanos     = nanos;
+                event.size      = size;
+                event.height    = height;
+                event.commit();
+            }
+        }
+    }
+    
+    /**
+     * @return the bucket holding values from 2^(bucket - 1) inclusive to 2^bucket exclusive, 
+     * with zero in bucket zero
+     */
+    static int bucketOf(long value) {
+        return value <= 0 ? 0 : Math.min(BUCKETS - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+    }
+    
+    public long getRotations(Rotation rotation) {
+        return rotations[rotation.ordinal()].sum();
+    }
+    
+    public long getRotations() {
+        long total = 0;
+        for (LongAdder adder : rotations) {
+            total += adder.sum();
+        }
+        return total;
+    }
+    
+    public long getDescents() {
+        return descents.sum();
+    }
+    
+    /**
+     * @return how many descents visited each number of nodes, indexed by that number
+     */
+    public long[] getDepthHistogram() {
+        return toArray(depths);
+    }
+    
+    public long getOperations(Operation operation) {
+        long total = 0;
+        for (long count : getLatencyHistogram(operation)) {
+            total += count;
+        }
+        return total;
+    }
+    
+    /**
+     * @return how many operations fell into each latency bucket
+     * @see #bucketOf(long)
+     */
+    public long[] getLatencyHistogram(Operation operation) {
+        return toArray(latencies[operation.ordinal()]);
+    }
+    
+    private static long[] toArray(AtomicLongArray array) {
+        long[] copy = new long[array.length()];
+        for (int i = 0 ; i < copy.length ; i++) {
+            copy[i] = array.get(i);
+        }
+        return copy;
+    }
+    
+}
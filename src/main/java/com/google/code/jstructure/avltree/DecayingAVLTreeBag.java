@@ -0,0 +1,148 @@
+package com.google.code.jstructure.avltree;
+
+import java.util.Random;
+
+import com.google.code.jstructure.PercentileBag;
+
+/**
+ * A fixed size sample of everything added, biased towards recent items, held in an
+ * {@link AVLTreeBag} so percentiles of the sample are found in O(log n) however long it runs.
+ * <p>
+ * This is a priority reservoir with forward decay, after Cormode, Shkapenyuk, Srivastava and
+ * Xu's "Forward Decay: A Practical Time Decay Model for Streaming Systems". An item added at
+ * time t has weight e^(alpha (t - L)), where L is the time of the first item, and the sample
+ * holds the items with the greatest u^(1 / weight) for u uniform in (0, 1), ie a weighted
+ * random sample. Taking logs twice, that is ordering by alpha (t - L) - ln(-ln u), which
+ * unlike the weight itself never overflows so there is no need to rescale as time goes by.
+ * With an alpha of 0 the sample is uniform.
+ * <p>
+ * The priorities are kept in a min-heap alongside the tree node each sampled item is in, so
+ * replacing the lowest priority item costs one removal of a known node and one add.
+ */
+public class DecayingAVLTreeBag<T extends Comparable<T>> implements PercentileBag<T> {
+
+    private final AVLTreeBag<T> bag = new AVLTreeBag<T>();
+
+    private final double    alpha;
+    private final Random    random;
+
+    private final double[]  priorities; // a min-heap
+    private final Node<T>[] nodes;      // holding the item with the priority at the same index
+    private int             count;
+    private long            landmark;
+    private long            latest  = Long.MIN_VALUE;
+
+    /**
+     * @param capacity how many items the sample holds
+     * @param alpha how quickly the weight of an item decays per unit of time, relative to
+     * later items. Items this much older are 1/e as likely to be in the sample.
+     */
+    public DecayingAVLTreeBag(int capacity, double alpha) {
+        this(capacity, alpha, new Random());
+    }
+
+    DecayingAVLTreeBag(int capacity, double alpha, Random random) {
+        if (capacity < 1 || !(alpha >= 0) || Double.isInfinite(alpha)) throw new IllegalArgumentException();
+        this.alpha  = alpha;
+        this.random = random;
+        priorities  = new double[capacity];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Node<T>[] nodes = new Node[capacity];
+        this.nodes  = nodes;
+    }
+
+    /**
+     * Adds an item with the same timestamp as the latest one.
+     */
+    @Override
+    public void add(T item) {
+        add(item, latest == Long.MIN_VALUE ? 0 : latest);
+    }
+
+    /**
+     * @param timestamp must not be before that of any item already added
+     */
+    public void add(T item, long timestamp) {
+        if (item == null)
+            throw new IllegalArgumentException();
+        if (timestamp < latest) throw new IllegalArgumentException("timestamps must not go backwards");
+        if (latest == Long.MIN_VALUE) {
+            landmark = timestamp;
+        }
+        latest = timestamp;
+
+        double u;
+        do {
+            u = random.nextDouble();
+        } while (u == 0 || u == 1); // in (0, 1) so that both logs are finite
+        double priority = alpha * (timestamp - landmark) - Math.log(-Math.log(u));
+        if (count < nodes.length) {
+            priorities[count]   = priority;
+            nodes[count]        = bag.addNode(item);
+            siftUp(count++);
+        } else if (priority > priorities[0]) {
+            bag.remove(nodes[0]);
+            priorities[0]   = priority;
+            nodes[0]        = bag.addNode(item);
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (priorities[parent] <= priorities[index]) {
+                return;
+            }
+            swap(parent, index);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= count) {
+                return;
+            }
+            if (child + 1 < count && priorities[child + 1] < priorities[child]) {
+                child++;
+            }
+            if (priorities[index] <= priorities[child]) {
+                return;
+            }
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        double priority = priorities[i];
+        priorities[i]   = priorities[j];
+        priorities[j]   = priority;
+        Node<T> node    = nodes[i];
+        nodes[i]        = nodes[j];
+        nodes[j]        = node;
+    }
+
+    /**
+     * @return how many items are in the sample, at most its capacity
+     */
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @see AVLTreeBag#elementAtPercentile(int)
+     */
+    @Override
+    public T elementAtPercentile(int percentile) {
+        return bag.elementAtPercentile(percentile);
+    }
+
+    AVLTreeBag<T> getBag() {
+        return bag;
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.google.code.jstructure.avltree;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Keeps the nodes off-heap in direct {@link ByteBuffer}s so they never take part in 
+ * garbage collection. Nodes are 40 byte records, with the longs eight byte aligned, held in 
+ * fixed size chunks that are added as the bag grows and never copied.
+ */
+public class DirectLongNodeStorage extends LongNodeStorage {
+    
+    static final int NODE_BYTES     = 40;
+    
+    /*
+     * The offsets of the fields within a node's record.
+     */
+    
+    static final int ITEM   = 0;
+    static final int LEFT   = 8;
+    static final int RIGHT  = 12;
+    static final int PARENT = 16;
+    static final int HEIGHT = 20;
+    static final int COUNT  = 24;
+    static final int SIZE   = 32;
+    
+    private final int   chunkShift;
+    private final int   chunkMask;
+    private ByteBuffer[] chunks = new ByteBuffer[0];
+    
+    public DirectLongNodeStorage() {
+        this(16);
+    }
+    
+    /**
+     * @param chunkShift each chunk holds 2^chunkShift nodes
+     */
+    public DirectLongNodeStorage(int chunkShift) {
+        if (chunkShift < 0 || chunkShift > 25) throw new IllegalArgumentException();
+        this.chunkShift = chunkShift;
+        this.chunkMask  = (1 << chunkShift) - 1;
+    }
+    
+    private ByteBuffer chunk(int node) {
+        return chunks[node >>> chunkShift];
+    }
+    
+    private int offset(int node) {
+        return (node & chunkMask) * NODE_BYTES;
+    }
+
+    @Override
+    long getItem(int node) {
+        return chunk(node).getLong(offset(node) + ITEM);
+    }
+
+    @Override
+    int getLeft(int node) {
+        return chunk(node).getInt(offset(node) + LEFT);
+    }
+
+    @Override
+    int getRight(int node) {
+        return chunk(node).getInt(offset(node) + RIGHT);
+    }
+
+    @Override
+    int getParent(int node) {
+        return chunk(node).getInt(offset(node) + PARENT);
+    }
+
+    @Override
+    int getHeight(int node) {
+        return chunk(node).getInt(offset(node) + HEIGHT);
+    }
+
+    @Override
+    long getCount(int node) {
+        return chunk(node).getLong(offset(node) + COUNT);
+    }
+
+    @Override
+    long getSize(int node) {
+        return chunk(node).getLong(offset(node) + SIZE);
+    }
+
+    @Override
+    void setItem(int node, long item) {
+        chunk(node).putLong(offset(node) + ITEM, item);
+    }
+
+    @Override
+    void setLeft(int node, int left) {
+        chunk(node).putInt(offset(node) + LEFT, left);
+    }
+
+    @Override
+    void setRight(int node, int right) {
+        chunk(node).putInt(offset(node) + RIGHT, right);
+    }
+
+    @Override
+    void setParent(int node, int parent) {
+        chunk(node).putInt(offset(node) + PARENT, parent);
+    }
+
+    @Override
+    void setHeight(int node, int height) {
+        chunk(node).putInt(offset(node) + HEIGHT, height);
+    }
+
+    @Override
+    void setCount(int node, long count) {
+        chunk(node).putLong(offset(node) + COUNT, count);
+    }
+
+    @Override
+    void setSize(int node, long size) {
+        chunk(node).putLong(offset(node) + SIZE, size);
+    }
+
+    @Override
+    int capacity() {
+        return (int) Math.min((long) chunks.length << chunkShift, Integer.MAX_VALUE);
+    }
+
+    @Override
+    void grow(int minCapacity) {
+        int required = (int) (((long) minCapacity + chunkMask) >>> chunkShift);
+        int existing = chunks.length;
+        chunks = Arrays.copyOf(chunks, required);
+        for (int i = existing ; i < required ; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(NODE_BYTES << chunkShift).order(ByteOrder.nativeOrder());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.google.code.jstructure.avltree;
+
+/**
+ * An {@link AVLTreeBag} of primitive doubles. Each double is stored in a 
+ * {@link LongAVLTreeBag} as a long that sorts the same way as {@link Double#compare(double, double)}
+ * so there is neither boxing nor floating point comparison on the way down the tree.
+ */
+public class DoubleAVLTreeBag {
+    
+    private final LongAVLTreeBag bag;
+    
+    public DoubleAVLTreeBag() {
+        this(new ArrayLongNodeStorage());
+    }
+    
+    public DoubleAVLTreeBag(LongNodeStorage nodes) {
+        bag = new LongAVLTreeBag(nodes);
+    }
+    
+    public void add(double item) {
+        bag.add(toSortable(item));
+    }
+    
+    public boolean remove(double item) {
+        return bag.remove(toSortable(item));
+    }
+    
+    public long size() {
+        return bag.size();
+    }
+    
+    /**
+     * @see AVLTreeBag#elementAtPercentile(int)
+     */
+    public double elementAtPercentile(int percentile) {
+        return fromSortable(bag.elementAtPercentile(percentile));
+    }
+    
+    /**
+     * Flips all but the sign bit of negative numbers so that the longs order like the doubles.
+     * Applying it twice gives back the original bits.
+     */
+    static long toSortable(double item) {
+        long bits = Double.doubleToLongBits(item);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+    
+    static double fromSortable(long sortable) {
+        return Double.longBitsToDouble(sortable ^ ((sortable >> 63) & Long.MAX_VALUE));
+    }
+    
+}
@@ -0,0 +1,113 @@
+package com.google.code.jstructure.avltree;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A front end for an {@link AVLTreeBag} that many threads add samples to while one thread
+ * moves them into the bag in batches, so a thread adding a sample pays only for a write to a
+ * ring buffer rather than a descent of the tree.
+ * <p>
+ * The ring is a bounded lock-free queue after Dmitry Vyukov's: each slot has a sequence number
+ * saying whether it is free for the producer that claims that position, by a compare-and-set
+ * of the tail, or full for the consumer. The consumer sorts each batch it drains and adds it
+ * with {@link AVLTreeBag#addAllSorted(Object[], int, int)}, which reuses the path to the
+ * previous item rather than descending from the root for each one.
+ * <p>
+ * The bag itself is not thread safe, so only the thread calling {@link #drain()} may use it.
+ */
+public class IngestionBuffer<T> {
+
+    private final AVLTreeBag<T>         bag;
+    private final Comparator<? super T> comparator;
+    private final Object[]              items;
+    private final AtomicLongArray       sequences;
+    private final int                   mask;
+    private final AtomicLong            tail = new AtomicLong();
+    private long                        head;   // only read and written by the consumer
+    private final T[]                   batch;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public IngestionBuffer(AVLTreeBag<T> bag, int capacity) {
+        if (bag == null || capacity < 1 || capacity > 1 << 30) throw new IllegalArgumentException();
+        int slots       = Math.max(Integer.highestOneBit(capacity - 1) << 1, 1);
+        this.bag        = bag;
+        comparator      = bag.comparator();
+        items           = new Object[slots];
+        sequences       = new AtomicLongArray(slots);
+        for (int i = 0 ; i < slots ; i++) {
+            sequences.set(i, i);
+        }
+        mask            = slots - 1;
+        batch           = (T[]) new Object[slots];
+    }
+
+    /**
+     * May be called by any number of threads at once.
+     * @return false if the buffer is full, in which case the item is not added
+     */
+    public boolean offer(T item) {
+        if (item == null)
+            throw new IllegalArgumentException();
+        long position = tail.get();
+        while (true) {
+            int slot        = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    items[slot] = item;
+                    sequences.lazySet(slot, position + 1); // publishes the item to the consumer
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false; // the consumer has not yet taken what was here a lap ago
+            } else {
+                position = tail.get(); // another producer claimed this position first
+            }
+        }
+    }
+
+    /**
+     * Moves everything offered so far, up to the capacity, into the bag. Must only be called by
+     * one thread at a time.
+     * @return how many items were moved
+     */
+    @SuppressWarnings("unchecked")
+    public int drain() {
+        int n = 0;
+        while (n < batch.length) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                break; // empty, or claimed but not yet written
+            }
+            batch[n++]  = (T) items[slot];
+            items[slot] = null;
+            sequences.lazySet(slot, head + items.length); // free for the producer a lap on
+            head++;
+        }
+        if (n > 0) {
+            Arrays.sort(batch, 0, n, comparator);
+            bag.addAllSorted(batch, 0, n);
+            Arrays.fill(batch, 0, n, null);
+        }
+        return n;
+    }
+
+    /**
+     * @return how many items are waiting to be drained, exact only on the consumer's thread
+     */
+    public int pending() {
+        return (int) Math.max(tail.get() - head, 0);
+    }
+
+    public AVLTreeBag<T> getBag() {
+        return bag;
+    }
+
+}
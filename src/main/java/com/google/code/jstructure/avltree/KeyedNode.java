@@ -0,0 +1,24 @@
+package com.google.code.jstructure.avltree;
+
+/**
+ * A node that caches the long key its item is ordered by.
+ */
+class KeyedNode<T> extends Node<T> {
+    
+    private final long key;
+    
+    KeyedNode(T item, long key, Node<T> parent) {
+        super(null, null, item, parent);
+        this.key = key;
+    }
+    
+    long getKey() {
+        return key;
+    }
+    
+    @Override
+    Node<T> copy() {
+        return new KeyedNode<T>(getItem(), key, null);
+    }
+    
+}
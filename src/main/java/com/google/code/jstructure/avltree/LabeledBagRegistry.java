@@ -0,0 +1,270 @@
+package com.google.code.jstructure.avltree;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Bags of samples by label, eg one per endpoint, status and region, created the first time a
+ * label is seen.
+ * <p>
+ * Labels are spread over a number of stripes by hash, each a map of its labels' bags guarded by
+ * one {@link ReentrantReadWriteLock}, so writers to different stripes never contend and there
+ * is no lock per bag. Readers take the read lock rather than reading optimistically because
+ * neither the map nor a bag's tree can be safely walked while a writer is restructuring it.
+ * <p>
+ * Each bag is a {@link WindowedAVLTreeBag} of at most a fixed number of the most recent
+ * samples, which caps its memory. A bag that has had nothing added to it for longer than the
+ * idle time is dropped so that labels which stop appearing do not accumulate: each add sweeps
+ * its own stripe at most once per idle time, and {@link #evictIdle()} sweeps them all for
+ * stripes that are no longer added to.
+ */
+public class LabeledBagRegistry<L, T extends Comparable<T>> {
+
+    private final Stripe<L, T>[]    stripes;
+    private final int               mask;
+    private final int               maxSamplesPerBag;
+    private final long              maxIdleNanos;
+    private final LongSupplier      clock;
+
+    /**
+     * @param maxSamplesPerBag each bag holds at most this many of its most recent samples
+     * @param maxIdle a bag is evicted once nothing has been added to it for this long
+     */
+    public LabeledBagRegistry(int maxSamplesPerBag, long maxIdle, TimeUnit unit) {
+        this(4 * Runtime.getRuntime().availableProcessors(), maxSamplesPerBag, maxIdle, unit);
+    }
+
+    public LabeledBagRegistry(int concurrency, int maxSamplesPerBag, long maxIdle, TimeUnit unit) {
+        this(concurrency, maxSamplesPerBag, unit.toNanos(maxIdle), System::nanoTime);
+    }
+
+    LabeledBagRegistry(int concurrency, int maxSamplesPerBag, long maxIdleNanos, LongSupplier clock) {
+        if (concurrency < 1 || maxSamplesPerBag < 1 || maxIdleNanos < 1) throw new IllegalArgumentException();
+        int numStripes          = Math.max(Integer.highestOneBit(concurrency - 1) << 1, 1);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Stripe<L, T>[] stripes  = new Stripe[numStripes];
+        this.stripes            = stripes;
+        long now                = clock.getAsLong();
+        for (int i = 0 ; i < numStripes ; i++) {
+            stripes[i] = new Stripe<L, T>(now);
+        }
+        mask                    = numStripes - 1;
+        this.maxSamplesPerBag   = maxSamplesPerBag;
+        this.maxIdleNanos       = maxIdleNanos;
+        this.clock              = clock;
+    }
+
+    public void add(L label, T item) {
+        if (item == null)
+            throw new IllegalArgumentException();
+        long now            = clock.getAsLong();
+        Stripe<L, T> stripe = stripeFor(label);
+        stripe.lock.writeLock().lock();
+        try {
+            if (now - stripe.lastSwept > maxIdleNanos) {
+                stripe.evictIdle(now, maxIdleNanos);
+            }
+            Entry<T> entry = stripe.bags.get(label);
+            if (entry == null) {
+                entry = new Entry<T>(new WindowedAVLTreeBag<T>(maxSamplesPerBag));
+                stripe.bags.put(label, entry);
+            }
+            entry.bag.add(item);
+            entry.lastAdded = now;
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return null if there is no bag for the label
+     * @see AVLTreeBag#elementAtPercentile(int)
+     */
+    public T elementAtPercentile(L label, int percentile) {
+        Stripe<L, T> stripe = stripeFor(label);
+        stripe.lock.readLock().lock();
+        try {
+            Entry<T> entry = stripe.bags.get(label);
+            return entry == null ? null : entry.bag.elementAtPercentile(percentile);
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return how many samples the label's bag holds, 0 if there is none
+     */
+    public int size(L label) {
+        Stripe<L, T> stripe = stripeFor(label);
+        stripe.lock.readLock().lock();
+        try {
+            Entry<T> entry = stripe.bags.get(label);
+            return entry == null ? 0 : entry.bag.size();
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return false if there was no bag for the label
+     */
+    public boolean remove(L label) {
+        Stripe<L, T> stripe = stripeFor(label);
+        stripe.lock.writeLock().lock();
+        try {
+            return stripe.bags.remove(label) != null;
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return how many labels have a bag
+     */
+    public int numberOfBags() {
+        int count = 0;
+        for (Stripe<L, T> stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                count += stripe.bags.size();
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Drops every bag that has had nothing added to it for longer than the idle time, one
+     * stripe at a time so writers to the other stripes carry on. Adds already do this for
+     * their own stripe, so this need only be called, eg on a schedule, if bags in stripes
+     * that are no longer added to must not be kept.
+     * @return how many were dropped
+     */
+    public int evictIdle() {
+        long now        = clock.getAsLong();
+        int evicted     = 0;
+        for (Stripe<L, T> stripe : stripes) {
+            stripe.lock.writeLock().lock();
+            try {
+                evicted += stripe.evictIdle(now, maxIdleNanos);
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Finds the given percentiles of every bag, the stripes being read concurrently in the
+     * common {@link ForkJoinPool}. Each stripe is read as of one moment but different stripes
+     * may be read at different moments.
+     * @return the elements at the percentiles, in the order asked for, by label
+     * @see AVLTreeBag#elementsAtPercentiles(double...)
+     */
+    public Map<L, List<T>> snapshot(double... percentiles) {
+        return ForkJoinPool.commonPool().invoke(new SnapshotTask<L, T>(stripes, 0, stripes.length, percentiles));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the label is null
+     */
+    private Stripe<L, T> stripeFor(L label) {
+        if (label == null)
+            throw new IllegalArgumentException();
+        int hash = label.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    private static class SnapshotTask<L, T extends Comparable<T>> extends RecursiveTask<Map<L, List<T>>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Stripe<L, T>[]    stripes;
+        private final int               from;
+        private final int               to;
+        private final double[]          percentiles;
+
+        SnapshotTask(Stripe<L, T>[] stripes, int from, int to, double[] percentiles) {
+            this.stripes        = stripes;
+            this.from           = from;
+            this.to             = to;
+            this.percentiles    = percentiles;
+        }
+
+        @Override
+        protected Map<L, List<T>> compute() {
+            if (to - from == 1) {
+                return stripes[from].snapshot(percentiles);
+            }
+            int middle              = (from + to) >>> 1;
+            SnapshotTask<L, T> left = new SnapshotTask<L, T>(stripes, from, middle, percentiles);
+            left.fork();
+            Map<L, List<T>> right   = new SnapshotTask<L, T>(stripes, middle, to, percentiles).compute();
+            Map<L, List<T>> all     = left.join();
+            all.putAll(right);
+            return all;
+        }
+    }
+
+    static final class Stripe<L, T extends Comparable<T>> {
+
+        final ReentrantReadWriteLock    lock = new ReentrantReadWriteLock();
+        final Map<L, Entry<T>>          bags = new HashMap<L, Entry<T>>();
+        long                            lastSwept;
+
+        Stripe(long now) {
+            lastSwept = now;
+        }
+
+        /**
+         * Called holding the write lock.
+         * @return how many bags were dropped
+         */
+        int evictIdle(long now, long maxIdleNanos) {
+            int evicted = 0;
+            for (Iterator<Entry<T>> entries = bags.values().iterator() ; entries.hasNext() ; ) {
+                if (now - entries.next().lastAdded > maxIdleNanos) {
+                    entries.remove();
+                    evicted++;
+                }
+            }
+            lastSwept = now;
+            return evicted;
+        }
+
+        Map<L, List<T>> snapshot(double[] percentiles) {
+            lock.readLock().lock();
+            try {
+                Map<L, List<T>> elements = new HashMap<L, List<T>>();
+                for (Map.Entry<L, Entry<T>> entry : bags.entrySet()) {
+                    AVLTreeBag<T> bag = entry.getValue().bag.getBag();
+                    if (bag.size() > 0) {
+                        elements.put(entry.getKey(), bag.elementsAtPercentiles(percentiles));
+                    }
+                }
+                return elements;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    static final class Entry<T extends Comparable<T>> {
+
+        final WindowedAVLTreeBag<T> bag;
+        long                        lastAdded;
+
+        Entry(WindowedAVLTreeBag<T> bag) {
+            this.bag = bag;
+        }
+    }
+
+}
@@ -0,0 +1,227 @@
+package com.google.code.jstructure.avltree;
+
+import static com.google.code.jstructure.avltree.LongNodeStorage.NIL;
+
+import java.util.NoSuchElementException;
+
+/**
+ * An {@link AVLTreeBag} of primitive longs. Nothing is boxed and nodes are int indices into 
+ * a {@link LongNodeStorage} so, once the storage has grown to fit, there is no allocation at all.
+ * Equal items share a node, so the storage only needs to fit the distinct items.
+ */
+public class LongAVLTreeBag {
+    
+    private final LongNodeStorage nodes;
+    
+    public LongAVLTreeBag() {
+        this(new ArrayLongNodeStorage());
+    }
+    
+    public LongAVLTreeBag(LongNodeStorage nodes) {
+        this.nodes = nodes;
+    }
+
+    public boolean remove(long item) {
+        int node = nodes.getRoot();
+        while (node != NIL) {
+            long nodeItem = nodes.getItem(node);
+            if (item > nodeItem) {
+                node = nodes.getRight(node);
+            } else if (item < nodeItem) { 
+                node = nodes.getLeft(node);
+            } else {
+                break;
+            }
+        }
+        if (node == NIL)
+            return false; // didn't find anything
+
+        long count = nodes.getCount(node);
+        if (count > 1) {
+            nodes.setCount(node, count - 1);
+            nodes.updateSizes(node); // the shape is unchanged so there's nothing to rebalance
+        } else {
+            delete(node);
+        }
+        return true;
+    }
+
+    private void delete(int toDelete) {
+        int parent  = nodes.getParent(toDelete);
+        int left    = nodes.getLeft(toDelete);
+        int right   = nodes.getRight(toDelete);
+        int with;
+        int toCheck;
+        if (left == NIL || right == NIL) {
+            with    = left != NIL ? left : right;
+            toCheck = parent;
+        } else {
+            int predecessor         = largestIn(left);
+            int predecessorParent   = nodes.getParent(predecessor);
+            if (predecessorParent != toDelete) {
+                nodes.attachRight(predecessorParent, nodes.getLeft(predecessor));
+                nodes.attachLeft(predecessor, left);
+                toCheck = predecessorParent;
+            } else {
+                toCheck = predecessor;
+            }
+            nodes.attachRight(predecessor, right);
+            nodes.setHeight(predecessor, nodes.getHeight(toDelete)); // what its new parent last saw
+            with = predecessor;
+        }
+        changePosition(toDelete, parent, with);
+        nodes.free(toDelete);
+        if (toCheck != NIL) {
+            checkConsistency(toCheck);
+        }
+    }
+
+    private void changePosition(int node, int parent, int with) {
+        if (parent != NIL) {
+            nodes.changePositions(parent, node, with);
+        } else {
+            nodes.setRoot(with);
+        }
+        if (with != NIL) {
+            nodes.setParent(with, parent);
+        }
+    }
+    
+    private int largestIn(int subtreeRoot) {
+        for (int right = nodes.getRight(subtreeRoot) ; right != NIL ; right = nodes.getRight(subtreeRoot)) {
+            subtreeRoot = right;
+        }
+        return subtreeRoot;
+    }
+
+    public void add(long item) {
+        int node = nodes.getRoot();
+        if (node == NIL) {
+            nodes.setRoot(nodes.allocate(item, NIL));
+            return;
+        }
+        int parent      = NIL;
+        boolean isRight = false;
+        while (node != NIL) {
+            parent = node;
+            long nodeItem = nodes.getItem(node);
+            if (item > nodeItem) {
+                node = nodes.getRight(node);
+                isRight = true;
+            } else if (item < nodeItem) {
+                node = nodes.getLeft(node);
+                isRight = false;
+            } else { // equal items share a node
+                nodes.setCount(node, nodes.getCount(node) + 1);
+                nodes.updateSizes(node);
+                return;
+            }
+        }
+        
+        int newNode = nodes.allocate(item, parent);
+        if (isRight) {
+            nodes.setRight(parent, newNode);
+        } else {
+            nodes.setLeft(parent, newNode);
+        }
+        
+        checkConsistency(parent);
+    }
+
+    /**
+     * @see AVLTreeBag#checkConsistency(Node)
+     */
+    void checkConsistency(int node) {
+        while (node != NIL) {
+            int oldHeight   = nodes.getHeight(node);
+            nodes.update(node);
+            int subtreeRoot = rebalance(node);
+            node            = nodes.getParent(subtreeRoot);
+            if (nodes.getHeight(subtreeRoot) == oldHeight) {
+                break;
+            }
+        }
+        for ( ; node != NIL ; node = nodes.getParent(node)) {
+            nodes.update(node);
+        }
+    }
+    
+    private int rebalance(int node) {
+        int balance = nodes.balance(node);
+        if (balance > 1) {
+            int right = nodes.getRight(node);
+            if (nodes.balance(right) < 0) {
+                rotateRight(right);
+            }
+            return rotateLeft(node);
+        } else if (balance < -1) {
+            int left = nodes.getLeft(node);
+            if (nodes.balance(left) > 0) {
+                rotateLeft(left);
+            }
+            return rotateRight(node);
+        }
+        return node;
+    }
+    
+    /**
+     * @return the node's right child, which takes its place
+     */
+    private int rotateLeft(int node) {
+        int pivot = nodes.getRight(node);
+        changePosition(node, nodes.getParent(node), pivot);
+        nodes.attachRight(node, nodes.getLeft(pivot));
+        nodes.attachLeft(pivot, node);
+        nodes.update(node);
+        nodes.update(pivot);
+        return pivot;
+    }
+    
+    /**
+     * @return the node's left child, which takes its place
+     */
+    private int rotateRight(int node) {
+        int pivot = nodes.getLeft(node);
+        changePosition(node, nodes.getParent(node), pivot);
+        nodes.attachLeft(node, nodes.getRight(pivot));
+        nodes.attachRight(pivot, node);
+        nodes.update(node);
+        nodes.update(pivot);
+        return pivot;
+    }
+
+    public long size() {
+        return nodes.sizeOf(nodes.getRoot());
+    }
+
+    /**
+     * @see AVLTreeBag#elementAtPercentile(int)
+     */
+    public long elementAtPercentile(int percentile) {
+        if (percentile > 100 || percentile < 0) throw new IllegalArgumentException();
+        
+        int node    = nodes.getRoot();
+        long size   = nodes.sizeOf(node);
+        if (size == 0) throw new NoSuchElementException("empty");
+        long index  = Math.min((size * percentile + 99) / 100, size - 1);
+        
+        while (true) {
+            int left        = nodes.getLeft(node);
+            long numToLeft  = nodes.sizeOf(left);
+            long count      = nodes.getCount(node);
+            if (index < numToLeft) {
+                node = left;
+            } else if (index < numToLeft + count) {
+                return nodes.getItem(node);
+            } else {
+                index -= numToLeft + count; // include self
+                node = nodes.getRight(node);
+            }
+        }
+    }
+
+    LongNodeStorage getNodes() {
+        return nodes;
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.google.code.jstructure.avltree;
+
+/**
+ * Where a {@link LongAVLTreeBag} keeps its nodes. A node is an int index rather than an
+ * object so there are no headers or references for the garbage collector to scan. Removed
+ * nodes are chained through their left index onto a free list and reused by later adds.
+ * <p>
+ * Equal items share a node with a count, so indices limit how many distinct items a bag can
+ * hold but counts and subtree sizes are longs and the number of items is not limited.
+ */
+public abstract class LongNodeStorage {
+    
+    static final int NIL = -1;
+    
+    private int root = NIL;
+    private int free = NIL;
+    private int used;
+    
+    abstract long getItem(int node);
+    abstract int getLeft(int node);
+    abstract int getRight(int node);
+    abstract int getParent(int node);
+    abstract int getHeight(int node);
+    abstract long getCount(int node);
+    abstract long getSize(int node);
+    
+    abstract void setItem(int node, long item);
+    abstract void setLeft(int node, int left);
+    abstract void setRight(int node, int right);
+    abstract void setParent(int node, int parent);
+    abstract void setHeight(int node, int height);
+    abstract void setCount(int node, long count);
+    abstract void setSize(int node, long size);
+    
+    /**
+     * @return how many nodes can be held before {@link #grow(int)} is needed
+     */
+    abstract int capacity();
+    
+    abstract void grow(int minCapacity);
+    
+    /*
+     * The root, the head of the free list and how many slots are used are kept in fields
+     * unless a storage that outlives the process overrides these to keep them with the nodes.
+     */
+    
+    int getRoot() {
+        return root;
+    }
+    
+    void setRoot(int root) {
+        this.root = root;
+    }
+    
+    int getFree() {
+        return free;
+    }
+    
+    void setFree(int free) {
+        this.free = free;
+    }
+    
+    /**
+     * @return the number of slots ever handed out, including those now on the free list
+     */
+    int used() {
+        return used;
+    }
+    
+    void setUsed(int used) {
+        this.used = used;
+    }
+    
+    int allocate(long item, int parent) {
+        int node = getFree();
+        if (node != NIL) {
+            setFree(getLeft(node));
+        } else {
+            node = used();
+            if (node == capacity()) {
+                grow(node + 1);
+            }
+            setUsed(node + 1);
+        }
+        setItem(node, item);
+        setLeft(node, NIL);
+        setRight(node, NIL);
+        setParent(node, parent);
+        setHeight(node, 1);
+        setCount(node, 1);
+        setSize(node, 1);
+        return node;
+    }
+    
+    void free(int node) {
+        setLeft(node, getFree());
+        setRight(node, NIL);
+        setParent(node, NIL);
+        setFree(node);
+    }
+    
+    int heightOf(int node) {
+        return node == NIL ? 0 : getHeight(node);
+    }
+    
+    long sizeOf(int node) {
+        return node == NIL ? 0 : getSize(node);
+    }
+    
+    int balance(int node) {
+        return heightOf(getRight(node)) - heightOf(getLeft(node));
+    }
+    
+    void update(int node) {
+        int left    = getLeft(node);
+        int right   = getRight(node);
+        setHeight(node, 1 + Math.max(heightOf(left), heightOf(right)));
+        setSize(node, getCount(node) + sizeOf(left) + sizeOf(right));
+    }
+    
+    /**
+     * Refreshes the sizes of node and its ancestors after a count has changed, which leaves
+     * the heights as they were.
+     */
+    void updateSizes(int node) {
+        for ( ; node != NIL ; node = getParent(node)) {
+            setSize(node, getCount(node) + sizeOf(getLeft(node)) + sizeOf(getRight(node)));
+        }
+    }
+    
+    void attachLeft(int node, int left) {
+        setLeft(node, left);
+        if (left != NIL) {
+            setParent(left, node);
+        }
+    }
+    
+    void attachRight(int node, int right) {
+        setRight(node, right);
+        if (right != NIL) {
+            setParent(right, node);
+        }
+    }
+    
+    void changePositions(int node, int toReplace, int with) {
+        if (getLeft(node) == toReplace) {
+            setLeft(node, with);
+        } else if (getRight(node) == toReplace) {
+            setRight(node, with);
+        }
+    }
+    
+    static int grownCapacity(int capacity, int minCapacity) {
+        long grown = Math.max((long) capacity + (capacity >> 1), minCapacity);
+        return (int) Math.min(grown, Integer.MAX_VALUE - 8);
+    }
+}
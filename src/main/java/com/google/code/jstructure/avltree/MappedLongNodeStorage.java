@@ -0,0 +1,440 @@
+package com.google.code.jstructure.avltree;
+
+import static com.google.code.jstructure.avltree.DirectLongNodeStorage.COUNT;
+import static com.google.code.jstructure.avltree.DirectLongNodeStorage.HEIGHT;
+import static com.google.code.jstructure.avltree.DirectLongNodeStorage.ITEM;
+import static com.google.code.jstructure.avltree.DirectLongNodeStorage.LEFT;
+import static com.google.code.jstructure.avltree.DirectLongNodeStorage.NODE_BYTES;
+import static com.google.code.jstructure.avltree.DirectLongNodeStorage.PARENT;
+import static com.google.code.jstructure.avltree.DirectLongNodeStorage.RIGHT;
+import static com.google.code.jstructure.avltree.DirectLongNodeStorage.SIZE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Keeps the nodes in a memory mapped file so a {@link LongAVLTreeBag} can be far larger than
+ * the heap and is still there, without being rebuilt, when the file is opened again.
+ * <p>
+ * The file is a header page holding the root, the head of the free list and how many nodes
+ * have been used, followed by fixed size pages of node records laid out as in
+ * {@link DirectLongNodeStorage}, each of which is mapped as the bag grows into it. So the
+ * subtree sizes that percentiles are found with are in the file along with everything else.
+ * <p>
+ * The fields a descent reads, the item, children, count and size, are also cached on the heap,
+ * which spares those reads the page tables and any page faults. Every descent passes through
+ * the top levels of the tree, so those nodes are pinned by their position in it: the root and,
+ * down to a given number of levels, each child read from a pinned node stay cached until a
+ * descent finds another node in their place. Nothing else can evict them. The other nodes read
+ * share a direct mapped cache indexed by the low bits of the node.
+ * <p>
+ * Changes reach the file when the operating system writes back the mapped pages, or at once
+ * on {@link #force()}. If the process dies part way through an add or remove the tree in the
+ * file may be inconsistent, so force at points that must survive a crash.
+ */
+public class MappedLongNodeStorage extends LongNodeStorage implements Closeable {
+
+    static final int    MAGIC           = 0x4A534D54; // "JSMT"
+
+    static final int    VERSION         = 2; // 1 had 32 byte nodes without counts
+
+    static final int    HEADER_BYTES    = 4096; // so that the node pages are page aligned
+
+    static final int    PINNED_LEVELS   = 10;
+
+    private static final int HEADER_MAGIC   = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_SHIFT   = 8;
+    private static final int HEADER_ROOT    = 12;
+    private static final int HEADER_FREE    = 16;
+    private static final int HEADER_USED    = 20;
+
+    private final FileChannel       channel;
+    private final MappedByteBuffer  header;
+    private final int               chunkShift;
+    private final int               chunkMask;
+    private MappedByteBuffer[]      chunks = new MappedByteBuffer[0];
+
+    /*
+     * The first cacheSlots of these are the direct mapped cache and the rest an open addressed
+     * table of the pinned nodes.
+     */
+
+    private final int[]             cachedNodes;
+    private final long[]            cachedItems;
+    private final int[]             cachedLefts;
+    private final int[]             cachedRights;
+    private final long[]            cachedCounts;
+    private final long[]            cachedSizes;
+    private final int               cacheSlots;
+    private final int               cacheMask;
+
+    private final int[]             pinnedAt;           // by position: 1 is the root and 2p, 2p + 1 are the children of p
+    private final int[]             pinnedPositions;    // by table index
+    private final int               pinnedMask;
+    private final int               pinnedShift;
+
+    /**
+     * Opens the file, creating it if it does not exist, with pages of 2^20 nodes, a cache of
+     * 2^12 nodes and the top 10 levels pinned.
+     */
+    public MappedLongNodeStorage(Path path) throws IOException {
+        this(path, 20, 1 << 12);
+    }
+
+    public MappedLongNodeStorage(Path path, int chunkShift, int cacheSize) throws IOException {
+        this(path, chunkShift, cacheSize, PINNED_LEVELS);
+    }
+
+    /**
+     * @param chunkShift each page of a new file holds 2^chunkShift nodes. An existing file
+     * keeps the size it was created with.
+     * @param cacheSize how many slots the direct mapped cache has, rounded up to a power of two
+     * @param pinnedLevels how many levels at the top of the tree are never evicted, up to 20
+     */
+    public MappedLongNodeStorage(Path path, int chunkShift, int cacheSize, int pinnedLevels) throws IOException {
+        if (chunkShift < 0 || chunkShift > 25 || cacheSize < 1 || cacheSize > 1 << 30) throw new IllegalArgumentException();
+        if (pinnedLevels < 0 || pinnedLevels > 20) throw new IllegalArgumentException();
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            boolean created = channel.size() == 0;
+            if (!created && channel.size() < HEADER_BYTES) throw new IOException("not a node file: " + path);
+            header = channel.map(MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (created) {
+                header.putInt(HEADER_MAGIC, MAGIC).putInt(HEADER_VERSION, VERSION).putInt(HEADER_SHIFT, chunkShift);
+                header.putInt(HEADER_ROOT, NIL).putInt(HEADER_FREE, NIL).putInt(HEADER_USED, 0);
+            } else {
+                if (header.getInt(HEADER_MAGIC) != MAGIC) throw new IOException("not a node file: " + path);
+                int version = header.getInt(HEADER_VERSION);
+                if (version != VERSION) throw new IOException("unsupported version " + version);
+                chunkShift = header.getInt(HEADER_SHIFT);
+                if (chunkShift < 0 || chunkShift > 25 || used() < 0) throw new IOException("corrupt header");
+            }
+            this.chunkShift = chunkShift;
+            this.chunkMask  = (1 << chunkShift) - 1;
+            if (used() > 0) {
+                grow(used());
+            }
+        } catch (IOException | RuntimeException x) {
+            channel.close();
+            throw x;
+        }
+        cacheSlots      = Math.max(Integer.highestOneBit(cacheSize - 1) << 1, 1);
+        cacheMask       = cacheSlots - 1;
+        int pinnedSlots = 2 << pinnedLevels; // at least twice the positions, so probes are short
+        int slots       = cacheSlots + pinnedSlots;
+        cachedNodes     = new int[slots];
+        Arrays.fill(cachedNodes, NIL);
+        cachedItems     = new long[slots];
+        cachedLefts     = new int[slots];
+        cachedRights    = new int[slots];
+        cachedCounts    = new long[slots];
+        cachedSizes     = new long[slots];
+        pinnedAt        = new int[1 << pinnedLevels];
+        Arrays.fill(pinnedAt, NIL);
+        pinnedPositions = new int[pinnedSlots];
+        pinnedMask      = pinnedSlots - 1;
+        pinnedShift     = 32 - Integer.numberOfTrailingZeros(pinnedSlots);
+    }
+
+    private ByteBuffer chunk(int node) {
+        return chunks[node >>> chunkShift];
+    }
+
+    private int offset(int node) {
+        return (node & chunkMask) * NODE_BYTES;
+    }
+
+    /**
+     * @return the slot the node is cached in, reading it into that slot if need be
+     */
+    private int cached(int node) {
+        int slot = pinnedSlot(node);
+        if (slot < 0) {
+            slot = node & cacheMask;
+            if (cachedNodes[slot] != node) {
+                read(node, slot);
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * @return the slot the node is cached in, or -1 if it is not
+     */
+    private int cachedOrNot(int node) {
+        int slot = pinnedSlot(node);
+        if (slot < 0) {
+            slot = node & cacheMask;
+            if (cachedNodes[slot] != node) slot = -1;
+        }
+        return slot;
+    }
+
+    private void read(int node, int slot) {
+        ByteBuffer chunk    = chunk(node);
+        int offset          = offset(node);
+        cachedItems[slot]   = chunk.getLong(offset + ITEM);
+        cachedLefts[slot]   = chunk.getInt(offset + LEFT);
+        cachedRights[slot]  = chunk.getInt(offset + RIGHT);
+        cachedCounts[slot]  = chunk.getLong(offset + COUNT);
+        cachedSizes[slot]   = chunk.getLong(offset + SIZE);
+        cachedNodes[slot]   = node;
+    }
+
+    private int home(int node) {
+        return (node * 0x9E3779B9) >>> pinnedShift;
+    }
+
+    /**
+     * @return the slot the node is pinned in, or -1 if it is not
+     */
+    private int pinnedSlot(int node) {
+        for (int i = home(node) ; ; i = (i + 1) & pinnedMask) {
+            int pinned = cachedNodes[cacheSlots + i];
+            if (pinned == node) return cacheSlots + i;
+            if (pinned == NIL) return -1;
+        }
+    }
+
+    /**
+     * Pins the node at the given position in the tree, unpinning whichever node was there
+     * before and moving the node from any other position it was pinned at.
+     */
+    private void pin(int node, int position) {
+        int previous = pinnedAt[position];
+        if (previous == node) return;
+        if (previous != NIL) unpin(previous);
+        int slot = pinnedSlot(node);
+        if (slot >= 0) {
+            pinnedAt[pinnedPositions[slot - cacheSlots]] = NIL;
+        } else {
+            int i = home(node);
+            while (cachedNodes[cacheSlots + i] != NIL) {
+                i = (i + 1) & pinnedMask;
+            }
+            slot = cacheSlots + i;
+            if (cachedNodes[node & cacheMask] == node) cachedNodes[node & cacheMask] = NIL; // so it is only cached once
+            read(node, slot);
+        }
+        pinnedPositions[slot - cacheSlots]  = position;
+        pinnedAt[position]                  = node;
+    }
+
+    /**
+     * Removes the node from the table, shifting back the nodes after it that probed past it.
+     */
+    private void unpin(int node) {
+        int slot = pinnedSlot(node);
+        if (slot < 0) return;
+        int gap = slot - cacheSlots;
+        pinnedAt[pinnedPositions[gap]] = NIL;
+        for (int i = (gap + 1) & pinnedMask ; cachedNodes[cacheSlots + i] != NIL ; i = (i + 1) & pinnedMask) {
+            if (((i - home(cachedNodes[cacheSlots + i])) & pinnedMask) >= ((i - gap) & pinnedMask)) {
+                int from                = cacheSlots + i;
+                int to                  = cacheSlots + gap;
+                cachedNodes[to]         = cachedNodes[from];
+                cachedItems[to]         = cachedItems[from];
+                cachedLefts[to]         = cachedLefts[from];
+                cachedRights[to]        = cachedRights[from];
+                cachedCounts[to]        = cachedCounts[from];
+                cachedSizes[to]         = cachedSizes[from];
+                pinnedPositions[gap]    = pinnedPositions[i];
+                gap                     = i;
+            }
+        }
+        cachedNodes[cacheSlots + gap] = NIL;
+    }
+
+    /**
+     * Pins a child read from a pinned node if it is within the pinned levels.
+     */
+    private void pinChild(int slot, int child, int side) {
+        if (slot < cacheSlots || child == NIL) return;
+        int position = pinnedPositions[slot - cacheSlots] << 1 | side;
+        if (position < pinnedAt.length) pin(child, position);
+    }
+
+    boolean isPinned(int node) {
+        return pinnedSlot(node) >= 0;
+    }
+
+    @Override
+    long getItem(int node) {
+        return cachedItems[cached(node)];
+    }
+
+    @Override
+    int getLeft(int node) {
+        int slot = cached(node);
+        int left = cachedLefts[slot];
+        pinChild(slot, left, 0);
+        return left;
+    }
+
+    @Override
+    int getRight(int node) {
+        int slot    = cached(node);
+        int right   = cachedRights[slot];
+        pinChild(slot, right, 1);
+        return right;
+    }
+
+    @Override
+    int getParent(int node) {
+        return chunk(node).getInt(offset(node) + PARENT);
+    }
+
+    @Override
+    int getHeight(int node) {
+        return chunk(node).getInt(offset(node) + HEIGHT);
+    }
+
+    @Override
+    long getCount(int node) {
+        return cachedCounts[cached(node)];
+    }
+
+    @Override
+    long getSize(int node) {
+        return cachedSizes[cached(node)];
+    }
+
+    @Override
+    void setItem(int node, long item) {
+        chunk(node).putLong(offset(node) + ITEM, item);
+        int slot = cachedOrNot(node);
+        if (slot >= 0) cachedItems[slot] = item;
+    }
+
+    @Override
+    void setLeft(int node, int left) {
+        chunk(node).putInt(offset(node) + LEFT, left);
+        int slot = cachedOrNot(node);
+        if (slot >= 0) cachedLefts[slot] = left;
+    }
+
+    @Override
+    void setRight(int node, int right) {
+        chunk(node).putInt(offset(node) + RIGHT, right);
+        int slot = cachedOrNot(node);
+        if (slot >= 0) cachedRights[slot] = right;
+    }
+
+    @Override
+    void setParent(int node, int parent) {
+        chunk(node).putInt(offset(node) + PARENT, parent);
+    }
+
+    @Override
+    void setHeight(int node, int height) {
+        chunk(node).putInt(offset(node) + HEIGHT, height);
+    }
+
+    @Override
+    void setCount(int node, long count) {
+        chunk(node).putLong(offset(node) + COUNT, count);
+        int slot = cachedOrNot(node);
+        if (slot >= 0) cachedCounts[slot] = count;
+    }
+
+    @Override
+    void setSize(int node, long size) {
+        chunk(node).putLong(offset(node) + SIZE, size);
+        int slot = cachedOrNot(node);
+        if (slot >= 0) cachedSizes[slot] = size;
+    }
+
+    @Override
+    int getRoot() {
+        int root = header.getInt(HEADER_ROOT);
+        if (root != NIL && pinnedAt.length > 1) pin(root, 1);
+        return root;
+    }
+
+    @Override
+    void setRoot(int root) {
+        header.putInt(HEADER_ROOT, root);
+    }
+
+    @Override
+    void free(int node) {
+        unpin(node); // or it would pin the rest of the free list
+        super.free(node);
+    }
+
+    @Override
+    int getFree() {
+        return header.getInt(HEADER_FREE);
+    }
+
+    @Override
+    void setFree(int free) {
+        header.putInt(HEADER_FREE, free);
+    }
+
+    @Override
+    int used() {
+        return header.getInt(HEADER_USED);
+    }
+
+    @Override
+    void setUsed(int used) {
+        header.putInt(HEADER_USED, used);
+    }
+
+    @Override
+    int capacity() {
+        return (int) Math.min((long) chunks.length << chunkShift, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Maps further pages, which extends the file.
+     */
+    @Override
+    void grow(int minCapacity) {
+        int required = (int) (((long) minCapacity + chunkMask) >>> chunkShift);
+        int existing = chunks.length;
+        MappedByteBuffer[] grown = Arrays.copyOf(chunks, required);
+        try {
+            for (int i = existing ; i < required ; i++) {
+                long position   = HEADER_BYTES + ((long) i << chunkShift) * NODE_BYTES;
+                grown[i]        = channel.map(MapMode.READ_WRITE, position, (long) NODE_BYTES << chunkShift);
+                grown[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+        chunks = grown;
+    }
+
+    /**
+     * Writes every change so far to the file.
+     */
+    public void force() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        header.force();
+    }
+
+    /**
+     * Forces the changes to the file and closes it. The storage must not be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+}
@@ -6,6 +6,9 @@ class Node<T> {
     private Node<T>   right;
     private Node<T>   parent;
     private final T   item;
+    private long      count = 1;
+    private int       height;
+    private long      size;
     
     Node(Node<T> left, Node<T> right, T item, Node<T> parent) {
         super();
@@ -13,6 +16,7 @@ class Node<T> {
         this.right  = right;
         this.item   = item;
         this.parent = parent;
+        update();
     }
     
     int balance() {
@@ -20,11 +24,75 @@ class Node<T> {
     }
     
     int getRightBalance() {
-        return right == null ? 0 : 1 + Math.max(right.getRightBalance(), right.getLeftBalance());
+        return heightOf(right);
     }
     
     int getLeftBalance() {
-        return left == null ? 0 : 1 + Math.max(left.getRightBalance(), left.getLeftBalance());
+        return heightOf(left);
+    }
+    
+    int getHeight() {
+        return height;
+    }
+    
+    /**
+     * @return how many of the bag's items are equal to this node's item, or their total weight
+     */
+    long getCount() {
+        return count;
+    }
+    
+    /**
+     * Callers must {@link #update()} this node and its ancestors afterwards.
+     */
+    void setCount(long count) {
+        this.count = count;
+    }
+    
+    /**
+     * @return the number of items in this subtree, counting duplicates, or their total weight
+     */
+    long getSize() {
+        return size;
+    }
+    
+    static int heightOf(Node<?> node) {
+        return node == null ? 0 : node.height;
+    }
+    
+    static long sizeOf(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+    
+    /**
+     * Recalculates the cached height and size from the (already up to date) children.
+     * @return true if either value changed
+     */
+    boolean update() {
+        int newHeight   = 1 + Math.max(heightOf(left), heightOf(right));
+        long newSize    = count + sizeOf(left) + sizeOf(right);
+        boolean changed = newHeight != height || newSize != size;
+        height          = newHeight;
+        size            = newSize;
+        return changed;
+    }
+    
+    /**
+     * For a node taking the place of another in the tree, so that retracing compares its new
+     * height with the height its new parent last saw.
+     */
+    void takeHeightOf(Node<T> replaced) {
+        height = replaced.height;
+    }
+    
+    /**
+     * Updates this node and its ancestors until the cached values stop changing.
+     */
+    void updateUpwards() {
+        Node<T> node = this;
+        while (node != null && node.update()) {
+            node = node.parent;
+        }
     }
 
     Node<T> getLeft() {
@@ -32,12 +100,21 @@ class Node<T> {
     }
 
     Node<T> setLeft(Node<T> left) {
+        attachLeft(left);
+        updateUpwards();
+        return this;
+    }
+    
+    /**
+     * Like {@link #setLeft(Node)} but does not update any cached values. 
+     * Callers must {@link #update()} themselves.
+     */
+    void attachLeft(Node<T> left) {
         checkNotSelf(left);
         this.left = left;
         if (left != null) {
             left.setParent(this);
         }
-        return this;
     }
 
     Node<T> getRight() {
@@ -45,12 +122,21 @@ class Node<T> {
     }
 
     Node<T> setRight(Node<T> right) {
+        attachRight(right);
+        updateUpwards();
+        return this;
+    }
+    
+    /**
+     * Like {@link #setRight(Node)} but does not update any cached values. 
+     * Callers must {@link #update()} themselves.
+     */
+    void attachRight(Node<T> right) {
         checkNotSelf(right);
         this.right = right;
         if (right != null) {
             right.setParent(this);
         }
-        return this;
     }
 
     Node<T> getParent() {
@@ -70,14 +156,15 @@ class Node<T> {
         return item;
     }
     
-    int getNumberOfChildren() {
-        return nodesIncludingMe() - 1; // don't count me
+    /**
+     * @return a new node, with no links, for the same item
+     */
+    Node<T> copy() {
+        return new Node<T>(null, null, item, null);
     }
-
-    private int nodesIncludingMe() {
-        int leftChildren = left == null ? 0 : left.nodesIncludingMe();
-        int rightChildren = right == null ? 0 : right.nodesIncludingMe();
-        return leftChildren + rightChildren + 1; // + 1 is for me
+    
+    long getNumberOfChildren() {
+        return size - count; // don't count me
     }
     
     @Override
@@ -104,7 +191,7 @@ class Node<T> {
             return false;
         if (getClass() != obj.getClass())
             return false;
-        Node other = (Node) obj;
+        Node<?> other = (Node<?>) obj;
         if (item == null) {
             if (other.item != null)
                 return false;
@@ -148,6 +235,49 @@ class Node<T> {
         throw new UnsupportedOperationException();
     }
     
+    /**
+     * @return the leftmost node of the subtree
+     */
+    static <T> Node<T> first(Node<T> node) {
+        if (node == null) return null;
+        while (node.left != null) {
+            node = node.left;
+        }
+        return node;
+    }
+    
+    /**
+     * @return the next node in order, found by following parent links rather than using a stack
+     */
+    Node<T> successor() {
+        if (right != null) {
+            return first(right);
+        }
+        Node<T> node    = this;
+        Node<T> parent  = this.parent;
+        while (parent != null && parent.right == node) {
+            node    = parent;
+            parent  = parent.parent;
+        }
+        return parent;
+    }
+    
+    /**
+     * @return the previous node in order
+     */
+    Node<T> predecessor() {
+        if (left != null) {
+            return Subtrees.last(left);
+        }
+        Node<T> node    = this;
+        Node<T> parent  = this.parent;
+        while (parent != null && parent.left == node) {
+            node    = parent;
+            parent  = parent.parent;
+        }
+        return parent;
+    }
+    
     boolean isRight(Node<T> child) {
         return right == child;
     }
@@ -159,9 +289,9 @@ class Node<T> {
     Node<T> replace(Node<T> toReplace, Node<T> with) {
         Node<T> replaced = changePositions(toReplace, with);
         if (with != null) {
+            with.setParent(this);
             with.setLeft(replaced.getLeft());
             with.setRight(replaced.getRight());
-            with.setParent(this);
         }
         return replaced;
     }
@@ -0,0 +1,270 @@
+package com.google.code.jstructure.avltree;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import com.google.code.jstructure.PercentileBag;
+
+/**
+ * An AVL tree bag whose nodes are never changed once made. Adding or removing an item copies
+ * just the path from the root to it, O(log n) nodes, and shares everything else with the
+ * previous version. So a {@link #snapshot()} is just the current root and costs O(1), readers
+ * of a snapshot need no locks however much the bag changes afterwards, and versions nobody
+ * refers to any more are left for the garbage collector.
+ * <p>
+ * Writers are lock-free too: each builds its new version from the latest and swaps it in with
+ * a compare-and-set, trying again if another writer got there first.
+ */
+public class PersistentAVLTreeBag<T extends Comparable<T>> implements PercentileBag<T>, Iterable<T> {
+
+    private final AtomicReference<Version<T>> root;
+
+    public PersistentAVLTreeBag() {
+        this(null);
+    }
+
+    private PersistentAVLTreeBag(Version<T> root) {
+        this.root = new AtomicReference<Version<T>>(root);
+    }
+
+    /**
+     * @return an independent bag that starts out with the same items. Changes to either are
+     * not seen by the other.
+     */
+    public PersistentAVLTreeBag<T> snapshot() {
+        return new PersistentAVLTreeBag<T>(root.get());
+    }
+
+    @Override
+    public void add(T item) {
+        if (item == null)
+            throw new IllegalArgumentException();
+        while (true) {
+            Version<T> current = root.get();
+            if (root.compareAndSet(current, insert(current, item))) {
+                return;
+            }
+        }
+    }
+
+    public boolean remove(T item) {
+        if (item == null)
+            throw new IllegalArgumentException();
+        while (true) {
+            Version<T> current  = root.get();
+            Version<T> removed  = delete(current, item);
+            if (removed == current) {
+                return false; // wasn't there
+            }
+            if (root.compareAndSet(current, removed)) {
+                return true;
+            }
+        }
+    }
+
+    private static <T extends Comparable<T>> Version<T> insert(Version<T> node, T item) {
+        if (node == null) {
+            return new Version<T>(item, 1, null, null);
+        }
+        int comparison = item.compareTo(node.item);
+        if (comparison < 0) {
+            return balance(node.item, node.count, insert(node.left, item), node.right);
+        } else if (comparison > 0) {
+            return balance(node.item, node.count, node.left, insert(node.right, item));
+        }
+        return new Version<T>(node.item, node.count + 1, node.left, node.right);
+    }
+
+    /**
+     * @return the node itself if the item is not in its subtree
+     */
+    private static <T extends Comparable<T>> Version<T> delete(Version<T> node, T item) {
+        if (node == null) {
+            return null;
+        }
+        int comparison = item.compareTo(node.item);
+        if (comparison < 0) {
+            Version<T> left = delete(node.left, item);
+            return left == node.left ? node : balance(node.item, node.count, left, node.right);
+        } else if (comparison > 0) {
+            Version<T> right = delete(node.right, item);
+            return right == node.right ? node : balance(node.item, node.count, node.left, right);
+        } else if (node.count > 1) {
+            return new Version<T>(node.item, node.count - 1, node.left, node.right);
+        } else if (node.left == null) {
+            return node.right;
+        } else if (node.right == null) {
+            return node.left;
+        }
+        Version<T> successor = node.right;
+        while (successor.left != null) {
+            successor = successor.left;
+        }
+        return balance(successor.item, successor.count, node.left, deleteFirst(node.right));
+    }
+
+    private static <T> Version<T> deleteFirst(Version<T> node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        return balance(node.item, node.count, deleteFirst(node.left), node.right);
+    }
+
+    /**
+     * @return a new node for the item with the given children, rotated if they differ in
+     * height by two
+     */
+    private static <T> Version<T> balance(T item, long count, Version<T> left, Version<T> right) {
+        int balance = heightOf(right) - heightOf(left);
+        if (balance > 1) {
+            if (heightOf(right.left) > heightOf(right.right)) {
+                right = rotateRight(right.item, right.count, right.left, right.right);
+            }
+            return rotateLeft(item, count, left, right);
+        } else if (balance < -1) {
+            if (heightOf(left.right) > heightOf(left.left)) {
+                left = rotateLeft(left.item, left.count, left.left, left.right);
+            }
+            return rotateRight(item, count, left, right);
+        }
+        return new Version<T>(item, count, left, right);
+    }
+
+    private static <T> Version<T> rotateLeft(T item, long count, Version<T> left, Version<T> right) {
+        return new Version<T>(right.item, right.count, new Version<T>(item, count, left, right.left), right.right);
+    }
+
+    private static <T> Version<T> rotateRight(T item, long count, Version<T> left, Version<T> right) {
+        return new Version<T>(left.item, left.count, left.left, new Version<T>(item, count, left.right, right));
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(sizeOf(root.get()), Integer.MAX_VALUE);
+    }
+
+    /**
+     * @see AVLTreeBag#elementAtPercentile(int)
+     */
+    @Override
+    public T elementAtPercentile(int percentile) {
+        if (percentile > 100 || percentile < 0) throw new IllegalArgumentException();
+        Version<T> node = root.get(); // everything below is read from this one version
+        long size       = sizeOf(node);
+        if (size == 0) throw new NoSuchElementException("empty");
+        return elementAt(node, Math.min((size * percentile + 99) / 100, size - 1));
+    }
+
+    /**
+     * @param index counting from 0, less than the size of the subtree
+     */
+    static <T> T elementAt(Version<T> node, long index) {
+        while (true) {
+            long numToLeft = sizeOf(node.left);
+            if (index < numToLeft) {
+                node = node.left;
+            } else if (index < numToLeft + node.count) {
+                return node.item;
+            } else {
+                index -= numToLeft + node.count;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Iterates over the version current when this is called, repeating duplicates. As nodes
+     * have no parent links the iterator keeps the path to the next node, O(log n), instead.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new InOrderIterator<T>(root.get());
+    }
+
+    @Override
+    public void forEach(Consumer<? super T> action) {
+        forEach(root.get(), action);
+    }
+
+    private static <T> void forEach(Version<T> node, Consumer<? super T> action) {
+        while (node != null) {
+            forEach(node.left, action);
+            for (long i = node.count ; i > 0 ; i--) {
+                action.accept(node.item);
+            }
+            node = node.right;
+        }
+    }
+
+    private static class InOrderIterator<T> implements Iterator<T> {
+
+        private final Version<T>[]  path;
+        private int                 depth;
+        private long                returned;   // of the top of the path's items
+
+        InOrderIterator(Version<T> root) {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            Version<T>[] path = new Version[heightOf(root)];
+            this.path = path;
+            pushLeft(root);
+        }
+
+        private void pushLeft(Version<T> node) {
+            while (node != null) {
+                path[depth++] = node;
+                node = node.left;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return depth > 0;
+        }
+
+        @Override
+        public T next() {
+            if (depth == 0) throw new NoSuchElementException();
+            Version<T> node = path[depth - 1];
+            if (++returned == node.count) {
+                path[--depth]   = null;
+                returned        = 0;
+                pushLeft(node.right);
+            }
+            return node.item;
+        }
+    }
+
+    static int heightOf(Version<?> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    static long sizeOf(Version<?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    Version<T> getRoot() {
+        return root.get();
+    }
+
+    static final class Version<T> {
+
+        final T             item;
+        final long          count;
+        final Version<T>    left;
+        final Version<T>    right;
+        final int           height;
+        final long          size;
+
+        Version(T item, long count, Version<T> left, Version<T> right) {
+            this.item   = item;
+            this.count  = count;
+            this.left   = left;
+            this.right  = right;
+            this.height = 1 + Math.max(heightOf(left), heightOf(right));
+            this.size   = count + sizeOf(left) + sizeOf(right);
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.google.code.jstructure.avltree;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Recorded by {@link CountingBagMetrics} for operations that took longer than its threshold.
+ */
+@Name("com.google.code.jstructure.SlowOperation")
+@Label("Slow Bag Operation")
+@Category("jstructure")
+@Description("An AVLTreeBag operation that took longer than the configured threshold")
+class SlowOperationEvent extends Event {
+    
+    @Label("Operation")
+    String  operation;
+    
+    @Label("Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long    nanos;
+    
+    @Label("Size")
+    int     size;
+    
+    @Label("Height")
+    int     height;
+    
+}
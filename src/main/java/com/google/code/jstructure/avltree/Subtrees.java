@@ -0,0 +1,317 @@
+package com.google.code.jstructure.avltree;
+
+import java.util.Comparator;
+import java.util.concurrent.RecursiveTask;
+
+import com.google.code.jstructure.avltree.BagMetrics.Rotation;
+
+/**
+ * Structural operations on detached subtrees, ie whose roots have no parent. They reuse the
+ * nodes they are given, so the subtrees passed in must not be used afterwards, and keep the
+ * cached heights and sizes up to date as they go.
+ */
+final class Subtrees {
+
+    private static final int PARALLEL_UNION_THRESHOLD = 1 << 13;
+
+    private Subtrees() {
+    }
+
+    /**
+     * @param middle a node whose item is greater than every item in left and less than every
+     * item in right. Its own children are discarded.
+     * @return the root of the balanced subtree of all three, in O(difference in height)
+     */
+    static <T> Node<T> join(Node<T> left, Node<T> middle, Node<T> right) {
+        int leftHeight  = Node.heightOf(left);
+        int rightHeight = Node.heightOf(right);
+        if (leftHeight > rightHeight + 1) {
+            Node<T> parent  = null; // descend the right spine to where right fits
+            Node<T> spine   = left;
+            while (Node.heightOf(spine) > rightHeight + 1) {
+                parent  = spine;
+                spine   = spine.getRight();
+            }
+            parent.attachRight(link(spine, middle, right));
+            return retrace(parent);
+        } else if (rightHeight > leftHeight + 1) {
+            Node<T> parent  = null;
+            Node<T> spine   = right;
+            while (Node.heightOf(spine) > leftHeight + 1) {
+                parent  = spine;
+                spine   = spine.getLeft();
+            }
+            parent.attachLeft(link(left, middle, spine));
+            return retrace(parent);
+        }
+        return link(left, middle, right);
+    }
+
+    /**
+     * Like {@link #join(Node, Node, Node)} without a middle node.
+     */
+    static <T> Node<T> join(Node<T> left, Node<T> right) {
+        if (left == null) return right;
+        if (right == null) return left;
+        Node<T> first = Node.first(right);
+        return join(left, first, removeFirst(first));
+    }
+
+    private static <T> Node<T> link(Node<T> left, Node<T> middle, Node<T> right) {
+        middle.attachLeft(left);
+        middle.attachRight(right);
+        middle.setParent(null);
+        middle.update();
+        return middle;
+    }
+
+    /**
+     * @param first the leftmost node of a detached subtree
+     * @return the root of what remains of that subtree once first has been unlinked from it
+     */
+    static <T> Node<T> removeFirst(Node<T> first) {
+        Node<T> parent  = first.getParent();
+        Node<T> right   = first.getRight();
+        first.attachRight(null);
+        first.setParent(null);
+        if (right != null) {
+            right.setParent(parent);
+        }
+        if (parent == null) {
+            return right;
+        }
+        parent.changePositions(first, right);
+        return retrace(parent);
+    }
+
+    /**
+     * @param last the rightmost node of a detached subtree
+     * @return the root of what remains of that subtree once last has been unlinked from it
+     */
+    static <T> Node<T> removeLast(Node<T> last) {
+        Node<T> parent  = last.getParent();
+        Node<T> left    = last.getLeft();
+        last.attachLeft(null);
+        last.setParent(null);
+        if (left != null) {
+            left.setParent(parent);
+        }
+        if (parent == null) {
+            return left;
+        }
+        parent.changePositions(last, left);
+        return retrace(parent);
+    }
+
+    static <T> Node<T> last(Node<T> node) {
+        if (node == null) return null;
+        while (node.getRight() != null) {
+            node = node.getRight();
+        }
+        return node;
+    }
+
+    /**
+     * Splits a subtree around an item in O(log n).
+     * @param parts filled with the roots of the items less than the item, the (detached) node
+     * holding those equal to it if there are any, and the roots of the items greater than it
+     */
+    static <T> void split(Node<T> node, T item, Comparator<? super T> comparator, Node<T>[] parts) {
+        if (node == null) {
+            parts[0] = parts[1] = parts[2] = null;
+            return;
+        }
+        Node<T> left    = detach(node.getLeft());
+        Node<T> right   = detach(node.getRight());
+        int comparison  = comparator.compare(item, node.getItem());
+        if (comparison < 0) {
+            split(left, item, comparator, parts);
+            parts[2] = join(parts[2], node, right);
+        } else if (comparison > 0) {
+            split(right, item, comparator, parts);
+            parts[0] = join(left, node, parts[0]);
+        } else {
+            parts[0] = left;
+            parts[1] = link(null, node, null);
+            parts[2] = right;
+        }
+    }
+
+    /**
+     * Splits a subtree in O(log n) so that the first part holds exactly the smallest rank items,
+     * dividing a node between the two parts if the rank falls among its equal items.
+     * @param parts filled with the roots of the smaller and of the remaining items
+     */
+    static <T> void splitAtRank(Node<T> node, long rank, Node<T>[] parts) {
+        if (node == null) {
+            parts[0] = parts[1] = null;
+            return;
+        }
+        Node<T> left    = detach(node.getLeft());
+        Node<T> right   = detach(node.getRight());
+        long numToLeft  = Node.sizeOf(left);
+        long count      = node.getCount();
+        if (rank <= numToLeft) {
+            splitAtRank(left, rank, parts);
+            parts[1] = join(parts[1], node, right);
+        } else if (rank >= numToLeft + count) {
+            splitAtRank(right, rank - numToLeft - count, parts);
+            parts[0] = join(left, node, parts[0]);
+        } else {
+            Node<T> lower = node.copy();
+            lower.setCount(rank - numToLeft);
+            node.setCount(count - lower.getCount());
+            parts[0] = join(left, lower, null);
+            parts[1] = join(null, node, right);
+        }
+    }
+
+    /**
+     * Merges two subtrees, adding together the counts of equal items, by splitting the second
+     * around the root of the first and recursing. This is O(m log(n/m + 1)) for subtrees of
+     * m and n >= m distinct items, so linear at worst and logarithmic when one is small.
+     */
+    static <T> Node<T> union(Node<T> first, Node<T> second, Comparator<? super T> comparator) {
+        if (first == null) return second;
+        if (second == null) return first;
+        if (first.getSize() < second.getSize()) { // split the smaller one
+            Node<T> swap    = first;
+            first           = second;
+            second          = swap;
+        }
+        Node<T> left    = detach(first.getLeft());
+        Node<T> right   = detach(first.getRight());
+        Node<T>[] parts = splitAround(first, second, comparator);
+        return join(union(left, parts[0], comparator), first, union(right, parts[2], comparator));
+    }
+
+    private static <T> Node<T>[] splitAround(Node<T> first, Node<T> second, Comparator<? super T> comparator) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Node<T>[] parts = new Node[3];
+        split(second, first.getItem(), comparator, parts);
+        if (parts[1] != null) {
+            first.setCount(first.getCount() + parts[1].getCount());
+        }
+        return parts;
+    }
+
+    /**
+     * {@link #union(Node, Node, Comparator)} with the two halves of large unions merged concurrently.
+     */
+    static class UnionTask<T> extends RecursiveTask<Node<T>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Node<T>               first;
+        private final Node<T>               second;
+        private final Comparator<? super T> comparator;
+
+        UnionTask(Node<T> first, Node<T> second, Comparator<? super T> comparator) {
+            this.first      = first;
+            this.second     = second;
+            this.comparator = comparator;
+        }
+
+        @Override
+        protected Node<T> compute() {
+            if (Node.sizeOf(first) + Node.sizeOf(second) <= PARALLEL_UNION_THRESHOLD
+                    || first == null || second == null) {
+                return union(first, second, comparator);
+            }
+            Node<T> larger  = first.getSize() < second.getSize() ? second : first;
+            Node<T> smaller = larger == first ? second : first;
+            Node<T> left    = detach(larger.getLeft());
+            Node<T> right   = detach(larger.getRight());
+            Node<T>[] parts = splitAround(larger, smaller, comparator);
+            UnionTask<T> leftTask = new UnionTask<T>(left, parts[0], comparator);
+            leftTask.fork();
+            Node<T> rightUnion = new UnionTask<T>(right, parts[2], comparator).compute();
+            return Subtrees.join(leftTask.join(), larger, rightUnion);
+        }
+    }
+
+    private static <T> Node<T> detach(Node<T> node) {
+        if (node != null) {
+            node.setParent(null);
+        }
+        return node;
+    }
+
+    /**
+     * Rebalances node and its ancestors.
+     * @return the root of the whole subtree
+     */
+    static <T> Node<T> retrace(Node<T> node) {
+        Node<T> top = node;
+        while (node != null) {
+            node.update();
+            top     = rebalance(node, BagMetrics.NONE);
+            node    = top.getParent();
+        }
+        return top;
+    }
+
+    /**
+     * Rotates node, whose cached values must be up to date, and the child on its taller side
+     * if they are unbalanced. This is the one rebalancing step for every bag of {@link Node}s,
+     * whether the node is in a detached subtree or a whole tree.
+     * @return the node now at the top of node's subtree, linked to node's old parent
+     */
+    static <T> Node<T> rebalance(Node<T> node, BagMetrics metrics) {
+        int balance = node.balance();
+        if (balance > 1) {
+            if (node.getRight().balance() < 0) {
+                metrics.rotated(Rotation.RIGHT_LEFT);
+                rotateRight(node.getRight());
+            } else {
+                metrics.rotated(Rotation.RIGHT_RIGHT);
+            }
+            return rotateLeft(node);
+        } else if (balance < -1) {
+            if (node.getLeft().balance() > 0) {
+                metrics.rotated(Rotation.LEFT_RIGHT);
+                rotateLeft(node.getLeft());
+            } else {
+                metrics.rotated(Rotation.LEFT_LEFT);
+            }
+            return rotateRight(node);
+        }
+        return node;
+    }
+
+    /**
+     * @return node's right child, which takes its place
+     */
+    static <T> Node<T> rotateLeft(Node<T> node) {
+        Node<T> parent  = node.getParent();
+        Node<T> right   = node.getRight();
+        node.attachRight(right.getLeft());
+        replaceChild(parent, node, right);
+        right.attachLeft(node);
+        node.update();
+        right.update();
+        return right;
+    }
+
+    /**
+     * @return node's left child, which takes its place
+     */
+    static <T> Node<T> rotateRight(Node<T> node) {
+        Node<T> parent  = node.getParent();
+        Node<T> left    = node.getLeft();
+        node.attachLeft(left.getRight());
+        replaceChild(parent, node, left);
+        left.attachRight(node);
+        node.update();
+        left.update();
+        return left;
+    }
+
+    private static <T> void replaceChild(Node<T> parent, Node<T> child, Node<T> with) {
+        if (parent != null) {
+            parent.changePositions(child, with);
+        }
+        with.setParent(parent);
+    }
+
+}
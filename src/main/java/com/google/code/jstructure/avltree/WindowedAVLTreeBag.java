@@ -0,0 +1,185 @@
+package com.google.code.jstructure.avltree;
+
+import java.util.Arrays;
+
+import com.google.code.jstructure.PercentileBag;
+
+/**
+ * An {@link AVLTreeBag} of only the most recent samples, bounded by count and optionally by
+ * age. The oldest samples are evicted automatically as new ones arrive.
+ * <p>
+ * Rather than keep a second copy of each sample in insertion order this keeps a ring of the
+ * tree's own nodes, so evicting a sample unlinks its node directly without searching the
+ * tree for it. The tree is ordered by value rather than by age, so the samples that expire
+ * together are scattered through it. When enough of them expire at once the tree is instead
+ * rebuilt from the nodes of the samples that remain, in linear time and without comparisons.
+ */
+public class WindowedAVLTreeBag<T extends Comparable<T>> implements PercentileBag<T> {
+
+    private final AVLTreeBag<T> bag = new AVLTreeBag<T>();
+
+    private final int   maxSamples;
+    private final long  windowLength;
+
+    private Node<T>[]   nodes;
+    private long[]      timestamps;
+    private int         head;
+    private int         count;
+    private long        latest = Long.MIN_VALUE;
+
+    /**
+     * @param maxSamples the bag holds at most this many of the most recently added samples
+     */
+    public WindowedAVLTreeBag(int maxSamples) {
+        this(maxSamples, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxSamples the bag holds at most this many of the most recently added samples
+     * @param windowLength and only those whose timestamp is within this of the latest timestamp
+     */
+    public WindowedAVLTreeBag(int maxSamples, long windowLength) {
+        if (maxSamples < 1 || windowLength < 1) throw new IllegalArgumentException();
+        this.maxSamples     = maxSamples;
+        this.windowLength   = windowLength;
+        int capacity        = Math.min(maxSamples, 16);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Node<T>[] nodes     = new Node[capacity];
+        this.nodes          = nodes;
+        timestamps          = new long[capacity];
+    }
+
+    /**
+     * Adds a sample with the same timestamp as the latest one.
+     */
+    public void add(T item) {
+        add(item, latest == Long.MIN_VALUE ? 0 : latest);
+    }
+
+    /**
+     * @param timestamp must not be before that of any sample already added
+     */
+    public void add(T item, long timestamp) {
+        if (timestamp < latest) throw new IllegalArgumentException("timestamps must not go backwards");
+        expire(timestamp);
+        if (count == maxSamples) {
+            evictOldest();
+        } else if (count == nodes.length) {
+            grow();
+        }
+        int tail            = (head + count) % nodes.length;
+        nodes[tail]         = bag.addNode(item);
+        timestamps[tail]    = timestamp;
+        count++;
+    }
+
+    /**
+     * Evicts every sample that has fallen out of the window as of the given time.
+     * @return how many were evicted
+     */
+    public int expire(long now) {
+        latest = Math.max(latest, now);
+        if (windowLength == Long.MAX_VALUE) return 0;
+
+        int expired = 0;
+        while (expired < count && isExpired(timestamps[(head + expired) % nodes.length])) {
+            expired++;
+        }
+        if (expired == count) {
+            clear();
+        } else if (expired > count >>> 3) { // k removals cost O(k log n) so rebuild instead
+            evictOldestByRebuilding(expired);
+        } else {
+            for (int i = 0 ; i < expired ; i++) {
+                evictOldest();
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * As no timestamp is after the latest the difference fits in an unsigned long, where
+     * subtracting the window length from the latest could overflow.
+     */
+    private boolean isExpired(long timestamp) {
+        return Long.compareUnsigned(latest - timestamp, windowLength) >= 0;
+    }
+
+    private void evictOldest() {
+        Node<T> oldest  = nodes[head];
+        nodes[head]     = null;
+        head            = (head + 1) % nodes.length;
+        count--;
+        bag.remove(oldest);
+    }
+
+    /**
+     * Drops the oldest samples by counting how many of the rest each node holds, in place of
+     * its count, and relinking the nodes left holding any.
+     */
+    private void evictOldestByRebuilding(int expired) {
+        for (Node<T> node = Node.first(bag.getRoot()) ; node != null ; node = node.successor()) {
+            node.setCount(0);
+        }
+        for (int i = 0 ; i < expired ; i++) {
+            nodes[(head + i) % nodes.length] = null;
+        }
+        head    = (head + expired) % nodes.length;
+        count   -= expired;
+        for (int i = 0 ; i < count ; i++) {
+            Node<T> node = nodes[(head + i) % nodes.length];
+            node.setCount(node.getCount() + 1);
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Node<T>[] remaining = new Node[count];
+        int distinct        = 0;
+        for (Node<T> node = Node.first(bag.getRoot()) ; node != null ; node = node.successor()) {
+            if (node.getCount() > 0) {
+                remaining[distinct++] = node;
+            }
+        }
+        bag.relink(remaining, distinct);
+    }
+
+    /**
+     * Empties the window in O(number of samples) without any rebalancing.
+     */
+    public void clear() {
+        for (int i = 0 ; i < count ; i++) {
+            nodes[(head + i) % nodes.length] = null;
+        }
+        head    = 0;
+        count   = 0;
+        bag.clear();
+    }
+
+    private void grow() {
+        int capacity        = (int) Math.min((long) nodes.length * 2, maxSamples);
+        Node<T>[] newNodes  = Arrays.copyOf(nodes, capacity);
+        long[] newTimes     = Arrays.copyOf(timestamps, capacity);
+        for (int i = 0 ; i < count ; i++) { // unwrap the ring
+            int from        = (head + i) % nodes.length;
+            newNodes[i]     = nodes[from];
+            newTimes[i]     = timestamps[from];
+        }
+        nodes       = newNodes;
+        timestamps  = newTimes;
+        head        = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @see AVLTreeBag#elementAtPercentile(int)
+     */
+    public T elementAtPercentile(int percentile) {
+        return bag.elementAtPercentile(percentile);
+    }
+
+    AVLTreeBag<T> getBag() {
+        return bag;
+    }
+
+}
@@ -0,0 +1,405 @@
+package com.google.code.jstructure.btree;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.LongConsumer;
+
+/**
+ * A bag of primitive longs held in an order statistic B+tree. Each node is a few sorted
+ * primitive arrays of up to {@link #FANOUT} entries, so a search touches one or two cache lines
+ * per level rather than one scattered object per binary level as in an
+ * {@link com.google.code.jstructure.avltree.AVLTreeBag}.
+ * <p>
+ * Leaves hold the distinct items with a count of each and are linked in order for range scans.
+ * Inner nodes hold, besides their children and the separating keys, how many items are under
+ * each child so that percentiles and ranks are found in one descent.
+ * <p>
+ * Nodes are split when they overflow but, as in many databases, are not merged when they
+ * become sparse; they are only freed once empty. So the height depends on the most distinct
+ * items the bag has held rather than how many it holds now.
+ */
+public class LongBPlusTreeBag {
+
+    static final int FANOUT     = 64;
+
+    static final int MAX_DEPTH  = 16; // 64^16 is far more than fits in memory
+
+    private Page    root        = new Leaf();
+    private Leaf    first       = (Leaf) root;
+    private int     size;
+
+    private final Inner[]   path        = new Inner[MAX_DEPTH];
+    private final int[]     pathIndexes = new int[MAX_DEPTH];
+    private long            promoted;   // the key separating the halves of the last split
+
+    public void add(long item) {
+        int depth   = 0;
+        Page page   = root;
+        while (page instanceof Inner) {
+            Inner inner         = (Inner) page;
+            int child           = inner.childFor(item);
+            path[depth]         = inner;
+            pathIndexes[depth++] = child;
+            page                = inner.children[child];
+        }
+        Leaf leaf   = (Leaf) page;
+        int at      = Arrays.binarySearch(leaf.keys, 0, leaf.n, item);
+        if (at >= 0) {
+            leaf.counts[at]++;
+        } else {
+            leaf.insert(-at - 1, item, 1);
+        }
+        size++;
+
+        Page split = leaf.n > FANOUT ? splitLeaf(leaf) : null;
+        for (int level = depth - 1 ; level >= 0 ; level--) {
+            Inner parent    = path[level];
+            int child       = pathIndexes[level];
+            path[level]     = null;
+            if (split == null) {
+                parent.sizes[child]++;
+            } else {
+                int splitSize       = split.size();
+                parent.sizes[child] += 1 - splitSize;
+                parent.insert(child + 1, promoted, split, splitSize);
+                split = parent.n > FANOUT ? splitInner(parent) : null;
+            }
+        }
+        if (split != null) {
+            Inner newRoot   = new Inner();
+            int splitSize   = split.size();
+            newRoot.n       = 2;
+            newRoot.keys[0] = promoted;
+            newRoot.children[0] = root;
+            newRoot.children[1] = split;
+            newRoot.sizes[0]    = size - splitSize;
+            newRoot.sizes[1]    = splitSize;
+            root            = newRoot;
+        }
+    }
+
+    private Leaf splitLeaf(Leaf leaf) {
+        int half    = leaf.n >>> 1;
+        Leaf right  = new Leaf();
+        right.n     = leaf.n - half;
+        System.arraycopy(leaf.keys, half, right.keys, 0, right.n);
+        System.arraycopy(leaf.counts, half, right.counts, 0, right.n);
+        leaf.n      = half;
+        right.next  = leaf.next;
+        right.previous = leaf;
+        if (leaf.next != null) {
+            leaf.next.previous = right;
+        }
+        leaf.next   = right;
+        promoted    = right.keys[0];
+        return right;
+    }
+
+    /**
+     * The left half keeps the first children and the separator between the halves moves up.
+     */
+    private Inner splitInner(Inner inner) {
+        int half    = inner.n >>> 1;
+        Inner right = new Inner();
+        right.n     = inner.n - half;
+        System.arraycopy(inner.children, half, right.children, 0, right.n);
+        System.arraycopy(inner.sizes, half, right.sizes, 0, right.n);
+        System.arraycopy(inner.keys, half, right.keys, 0, right.n - 1);
+        promoted    = inner.keys[half - 1];
+        Arrays.fill(inner.children, half, inner.n, null);
+        inner.n     = half;
+        return right;
+    }
+
+    /**
+     * @return false if the item was not in the bag
+     */
+    public boolean remove(long item) {
+        int depth   = 0;
+        Page page   = root;
+        while (page instanceof Inner) {
+            Inner inner         = (Inner) page;
+            int child           = inner.childFor(item);
+            path[depth]         = inner;
+            pathIndexes[depth++] = child;
+            page                = inner.children[child];
+        }
+        Leaf leaf   = (Leaf) page;
+        int at      = Arrays.binarySearch(leaf.keys, 0, leaf.n, item);
+        if (at < 0) {
+            Arrays.fill(path, 0, depth, null);
+            return false;
+        }
+        if (leaf.counts[at] > 1) {
+            leaf.counts[at]--;
+        } else {
+            leaf.remove(at);
+        }
+        size--;
+
+        boolean emptied = leaf.n == 0 && depth > 0;
+        if (emptied) {
+            unlink(leaf);
+        }
+        for (int level = depth - 1 ; level >= 0 ; level--) {
+            Inner parent    = path[level];
+            int child       = pathIndexes[level];
+            path[level]     = null;
+            if (emptied) {
+                parent.remove(child);
+                emptied = parent.n == 0;
+            } else {
+                parent.sizes[child]--;
+            }
+        }
+        if (emptied) { // every leaf has gone
+            clear();
+        }
+        while (root instanceof Inner && ((Inner) root).n == 1) {
+            root = ((Inner) root).children[0];
+        }
+        return true;
+    }
+
+    private void unlink(Leaf leaf) {
+        if (leaf.previous != null) {
+            leaf.previous.next = leaf.next;
+        } else {
+            first = leaf.next;
+        }
+        if (leaf.next != null) {
+            leaf.next.previous = leaf.previous;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        root    = new Leaf();
+        first   = (Leaf) root;
+        size    = 0;
+    }
+
+    /**
+     * @see com.google.code.jstructure.avltree.AVLTreeBag#elementAtPercentile(int)
+     */
+    public long elementAtPercentile(int percentile) {
+        if (percentile > 100 || percentile < 0) throw new IllegalArgumentException();
+        if (size == 0) throw new NoSuchElementException("empty");
+        int index   = (int) Math.min(((long) size * percentile + 99) / 100, size - 1);
+        Page page   = root;
+        while (page instanceof Inner) {
+            Inner inner = (Inner) page;
+            int child   = 0;
+            while (index >= inner.sizes[child]) {
+                index -= inner.sizes[child++];
+            }
+            page = inner.children[child];
+        }
+        Leaf leaf   = (Leaf) page;
+        int at      = 0;
+        while (index >= leaf.counts[at]) {
+            index -= leaf.counts[at++];
+        }
+        return leaf.keys[at];
+    }
+
+    /**
+     * @return how many items are less than or equal to the given one
+     */
+    public int rank(long item) {
+        return countBelow(item, true);
+    }
+
+    /**
+     * @return how many items are strictly less than the given one
+     */
+    public int countLessThan(long item) {
+        return countBelow(item, false);
+    }
+
+    /**
+     * @return how many items are between from and to, both inclusive
+     */
+    public int countBetween(long from, long to) {
+        if (from > to) throw new IllegalArgumentException(from + " is after " + to);
+        return countBelow(to, true) - countBelow(from, false);
+    }
+
+    private int countBelow(long item, boolean inclusive) {
+        int count   = 0;
+        Page page   = root;
+        while (page instanceof Inner) {
+            Inner inner = (Inner) page;
+            int child   = inner.childFor(item);
+            for (int i = 0 ; i < child ; i++) {
+                count += inner.sizes[i];
+            }
+            page = inner.children[child];
+        }
+        Leaf leaf   = (Leaf) page;
+        int at      = Arrays.binarySearch(leaf.keys, 0, leaf.n, item);
+        int before  = at >= 0 ? at : -at - 1;
+        for (int i = 0 ; i < before ; i++) {
+            count += leaf.counts[i];
+        }
+        if (at >= 0 && inclusive) {
+            count += leaf.counts[at];
+        }
+        return count;
+    }
+
+    /**
+     * Visits every item in ascending order, repeating duplicates, by walking the linked leaves.
+     */
+    public void forEach(LongConsumer action) {
+        for (Leaf leaf = first ; leaf != null ; leaf = leaf.next) {
+            leaf.forEach(0, leaf.n, action);
+        }
+    }
+
+    /**
+     * Visits the items between from and to, both inclusive, in ascending order with one descent
+     * to the first and then a walk along the linked leaves.
+     */
+    public void forEachBetween(long from, long to, LongConsumer action) {
+        if (from > to) throw new IllegalArgumentException(from + " is after " + to);
+        Page page = root;
+        while (page instanceof Inner) {
+            Inner inner = (Inner) page;
+            page = inner.children[inner.childFor(from)];
+        }
+        Leaf leaf   = (Leaf) page;
+        int at      = Arrays.binarySearch(leaf.keys, 0, leaf.n, from);
+        at          = at >= 0 ? at : -at - 1;
+        for ( ; leaf != null ; leaf = leaf.next, at = 0) {
+            int end = at;
+            while (end < leaf.n && leaf.keys[end] <= to) {
+                end++;
+            }
+            leaf.forEach(at, end, action);
+            if (end < leaf.n) {
+                return;
+            }
+        }
+    }
+
+    int height() {
+        int height = 1;
+        for (Page page = root ; page instanceof Inner ; page = ((Inner) page).children[0]) {
+            height++;
+        }
+        return height;
+    }
+
+    Page getRoot() {
+        return root;
+    }
+
+    abstract static class Page {
+
+        int n;
+
+        /**
+         * @return how many items are under this page, counting duplicates
+         */
+        abstract int size();
+    }
+
+    /**
+     * Holds up to {@link #FANOUT} distinct items, one more briefly before it is split.
+     */
+    static final class Leaf extends Page {
+
+        final long[]    keys    = new long[FANOUT + 1];
+        final int[]     counts  = new int[FANOUT + 1];
+        Leaf            next;
+        Leaf            previous;
+
+        void insert(int at, long key, int count) {
+            System.arraycopy(keys, at, keys, at + 1, n - at);
+            System.arraycopy(counts, at, counts, at + 1, n - at);
+            keys[at]    = key;
+            counts[at]  = count;
+            n++;
+        }
+
+        void remove(int at) {
+            System.arraycopy(keys, at + 1, keys, at, n - at - 1);
+            System.arraycopy(counts, at + 1, counts, at, n - at - 1);
+            n--;
+        }
+
+        void forEach(int from, int to, LongConsumer action) {
+            for (int i = from ; i < to ; i++) {
+                long key = keys[i];
+                for (int count = counts[i] ; count > 0 ; count--) {
+                    action.accept(key);
+                }
+            }
+        }
+
+        @Override
+        int size() {
+            int size = 0;
+            for (int i = 0 ; i < n ; i++) {
+                size += counts[i];
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Holds up to {@link #FANOUT} children. Every item under child i + 1 is at least keys[i]
+     * and every item under child i is less than it.
+     */
+    static final class Inner extends Page {
+
+        final long[]    keys        = new long[FANOUT];
+        final Page[]    children    = new Page[FANOUT + 1];
+        final int[]     sizes       = new int[FANOUT + 1];
+
+        /**
+         * @return the index of the child that may hold the item
+         */
+        int childFor(long item) {
+            int at = Arrays.binarySearch(keys, 0, n - 1, item);
+            return at >= 0 ? at + 1 : -at - 1;
+        }
+
+        /**
+         * @param key the lowest any item under the new child may be
+         */
+        void insert(int at, long key, Page child, int size) {
+            System.arraycopy(children, at, children, at + 1, n - at);
+            System.arraycopy(sizes, at, sizes, at + 1, n - at);
+            System.arraycopy(keys, at - 1, keys, at, n - at);
+            children[at]    = child;
+            sizes[at]       = size;
+            keys[at - 1]    = key;
+            n++;
+        }
+
+        void remove(int at) {
+            System.arraycopy(children, at + 1, children, at, n - at - 1);
+            System.arraycopy(sizes, at + 1, sizes, at, n - at - 1);
+            if (n > 1) {
+                int key = Math.max(at - 1, 0); // the separator below the child, or above the first
+                System.arraycopy(keys, key + 1, keys, key, n - 2 - key);
+            }
+            children[--n] = null;
+        }
+
+        @Override
+        int size() {
+            int size = 0;
+            for (int i = 0 ; i < n ; i++) {
+                size += sizes[i];
+            }
+            return size;
+        }
+    }
+
+}
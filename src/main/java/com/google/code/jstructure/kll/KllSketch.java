@@ -0,0 +1,208 @@
+package com.google.code.jstructure.kll;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import com.google.code.jstructure.PercentileBag;
+
+/**
+ * An approximate {@link PercentileBag} in bounded memory, after Karnin, Lang and Liberty's
+ * "Optimal Quantile Approximation in Streams" (KLL).
+ * <p>
+ * Samples go into a stack of compactors. When a compactor is full it is sorted and every other
+ * sample, starting at random, is promoted to the compactor above with twice the weight.
+ * Compactors shrink geometrically towards the bottom of the stack, so the sketch retains about
+ * 3k samples however many are added. A sample at percentile p is within a rank of roughly
+ * {@link #rankError(int)} times the size of the one an exact bag would return.
+ */
+public class KllSketch<T extends Comparable<T>> implements PercentileBag<T> {
+
+    private static final double CAPACITY_DECAY   = 2d / 3;
+
+    private static final int    MIN_CAPACITY     = 2;
+
+    private final int       k;
+    private final Random    random;
+
+    private Object[][]      levels      = new Object[0][];
+    private int[]           levelSizes  = new int[0];
+    private int             retained;
+    private int             maxRetained;
+    private long            count;
+
+    private Object[]        sortedItems;        // merged view for queries, null when stale
+    private long[]          cumulativeWeights;
+
+    public KllSketch() {
+        this(200);
+    }
+
+    /**
+     * @param k the size of the largest compactor. Accuracy improves, and memory grows, linearly with it.
+     */
+    public KllSketch(int k) {
+        this(k, new Random());
+    }
+
+    KllSketch(int k, Random random) {
+        if (k < MIN_CAPACITY) throw new IllegalArgumentException();
+        this.k      = k;
+        this.random = random;
+        grow();
+    }
+
+    /**
+     * @param rankError the acceptable error in rank as a fraction of the size, eg 0.01 for 1%
+     */
+    public static <T extends Comparable<T>> KllSketch<T> withRankError(double rankError) {
+        if (!(rankError > 0 && rankError < 1)) throw new IllegalArgumentException();
+        return new KllSketch<T>(kFor(rankError));
+    }
+
+    /**
+     * Empirical fit for this style of sketch (as used by Apache DataSketches) of the normalized
+     * rank error that holds with 99% confidence.
+     */
+    public static double rankError(int k) {
+        return 2.446 / Math.pow(k, 0.9433);
+    }
+
+    static int kFor(double rankError) {
+        return Math.max(MIN_CAPACITY, (int) Math.ceil(Math.pow(2.446 / rankError, 1 / 0.9433)));
+    }
+
+    @Override
+    public void add(T item) {
+        if (item == null)
+            throw new IllegalArgumentException();
+        append(0, item);
+        retained++;
+        count++;
+        sortedItems = null;
+        if (retained >= maxRetained) {
+            compress();
+        }
+    }
+
+    /**
+     * @return how many samples have been added, saturating at {@link Integer#MAX_VALUE}
+     */
+    @Override
+    public int size() {
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    /**
+     * @return how many samples the sketch is currently holding
+     */
+    public int retained() {
+        return retained;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T elementAtPercentile(int percentile) {
+        if (percentile > 100 || percentile < 0) throw new IllegalArgumentException();
+        if (count == 0) throw new NoSuchElementException("empty");
+        if (sortedItems == null) {
+            mergeLevels();
+        }
+        long index  = Math.min((count * percentile + 99) / 100, count - 1);
+        int found   = Arrays.binarySearch(cumulativeWeights, index + 1);
+        int at      = found >= 0 ? found : -(found + 1); // first with weight up to and including it > index
+        return (T) sortedItems[at];
+    }
+
+    private int capacity(int level) {
+        int depth = levels.length - level - 1;
+        return Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)));
+    }
+
+    private void grow() {
+        int numLevels   = levels.length + 1;
+        levels          = Arrays.copyOf(levels, numLevels);
+        levelSizes      = Arrays.copyOf(levelSizes, numLevels);
+        levels[numLevels - 1] = new Object[MIN_CAPACITY];
+        maxRetained     = 0;
+        for (int level = 0 ; level < numLevels ; level++) {
+            maxRetained += capacity(level);
+        }
+    }
+
+    /**
+     * Compacts the lowest compactor that is full. Only one is compacted per call as that is
+     * enough to get back under the overall limit.
+     */
+    private void compress() {
+        for (int level = 0 ; level < levels.length ; level++) {
+            if (levelSizes[level] >= capacity(level)) {
+                if (level + 1 == levels.length) {
+                    grow();
+                }
+                compact(level);
+                return;
+            }
+        }
+    }
+
+    private void compact(int level) {
+        Object[] items  = levels[level];
+        int size        = levelSizes[level];
+        Arrays.sort(items, 0, size);
+        int odd         = size & 1; // an odd one out stays where it is
+        int offset      = random.nextBoolean() ? 1 : 0;
+        for (int i = odd ; i < size ; i += 2) {
+            append(level + 1, items[i + offset]);
+        }
+        Arrays.fill(items, odd, size, null);
+        levelSizes[level] = odd;
+        retained -= (size - odd) / 2;
+    }
+
+    private void append(int level, Object item) {
+        Object[] items = levels[level];
+        int size = levelSizes[level];
+        if (size == items.length) {
+            items = levels[level] = Arrays.copyOf(items, Math.max(capacity(level), size * 2));
+        }
+        items[size] = item;
+        levelSizes[level] = size + 1;
+    }
+
+    /**
+     * Sorts each compactor and merges them into one sorted view where each sample at level h
+     * has weight 2^h.
+     */
+    private void mergeLevels() {
+        int[] cursors = new int[levels.length];
+        for (int level = 0 ; level < levels.length ; level++) {
+            Arrays.sort(levels[level], 0, levelSizes[level]);
+        }
+        sortedItems         = new Object[retained];
+        cumulativeWeights   = new long[retained];
+        long cumulative     = 0;
+        for (int i = 0 ; i < retained ; i++) {
+            int smallest = -1;
+            for (int level = 0 ; level < levels.length ; level++) {
+                if (cursors[level] < levelSizes[level] && (smallest == -1
+                        || compare(levels[level][cursors[level]], levels[smallest][cursors[smallest]]) < 0)) {
+                    smallest = level;
+                }
+            }
+            sortedItems[i]          = levels[smallest][cursors[smallest]++];
+            cumulative              += 1L << smallest;
+            cumulativeWeights[i]    = cumulative;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> int compare(Object left, Object right) {
+        return ((Comparable<T>) left).compareTo((T) right);
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.google.code.jstructure.avltree;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AVLTreeBagSnapshotTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void roundTripWithDuplicates() throws IOException {
+        Random random           = new Random(42);
+        AVLTreeBag<Long> bag    = new AVLTreeBag<Long>();
+        List<Long> expected     = new ArrayList<Long>();
+        for (int i = 0 ; i < 100000 ; i++) {
+            long value = random.nextInt(5000) - 2500;
+            bag.add(value);
+            expected.add(value);
+        }
+        Collections.sort(expected);
+        
+        AVLTreeBag<Long> loaded = roundTrip(bag);
+        AVLTreeBagTest.checkInvariants(loaded.getRoot());
+        assertEquals(expected, loaded.stream().collect(Collectors.toList()));
+        assertEquals(bag.elementAtPercentile(99), loaded.elementAtPercentile(99));
+    }
+    
+    @Test
+    public void roundTripExtremesWithoutDuplicates() throws IOException {
+        AVLTreeBag<Long> bag = new AVLTreeBag<Long>();
+        bag.add(Long.MIN_VALUE);
+        bag.add(-1L);
+        bag.add(0L);
+        bag.add(Long.MAX_VALUE);
+        
+        File file = write(bag);
+        assertEquals(AVLTreeBagSnapshot.HEADER_LENGTH + 10 + 9 + 1 + 9, file.length()); // no counts
+        AVLTreeBag<Long> loaded = AVLTreeBagSnapshot.read(file.toPath(), Long::valueOf);
+        assertEquals(bag.stream().collect(Collectors.toList()), loaded.stream().collect(Collectors.toList()));
+    }
+    
+    @Test
+    public void roundTripEmpty() throws IOException {
+        assertEquals(0, roundTrip(new AVLTreeBag<Long>()).size());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEncoderThatReordersItems() throws IOException {
+        AVLTreeBag<Long> bag = new AVLTreeBag<Long>();
+        bag.add(1L);
+        bag.add(2L);
+        AVLTreeBagSnapshot.write(bag, item -> -item, folder.newFile().toPath());
+    }
+    
+    @Test(expected = IOException.class)
+    public void rejectsTruncated() throws IOException {
+        AVLTreeBag<Long> bag = new AVLTreeBag<Long>();
+        for (long i = 0 ; i < 100 ; i++) {
+            bag.add(i * 1000);
+        }
+        File file = write(bag);
+        try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+            truncated.setLength(file.length() - 5);
+        }
+        AVLTreeBagSnapshot.read(file.toPath(), Long::valueOf);
+    }
+    
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        Path path = folder.newFile().toPath();
+        Files.write(path, new byte[100]);
+        AVLTreeBagSnapshot.read(path, Long::valueOf);
+    }
+    
+    @Test(expected = IOException.class)
+    public void rejectsMoreItemsThanCouldFit() throws IOException {
+        Path path = folder.newFile().toPath();
+        ByteBuffer buffer = ByteBuffer.allocate(AVLTreeBagSnapshot.HEADER_LENGTH + 10);
+        buffer.putInt(AVLTreeBagSnapshot.MAGIC).putInt(AVLTreeBagSnapshot.VERSION).putInt(0).putInt(Integer.MAX_VALUE).putLong(Integer.MAX_VALUE);
+        Files.write(path, buffer.array());
+        AVLTreeBagSnapshot.read(path, Long::valueOf);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBagsNotInNaturalOrder() throws IOException {
+        AVLTreeBag<Long> bag = new AVLTreeBag<Long>(Collections.reverseOrder());
+        bag.add(1L);
+        AVLTreeBagSnapshot.write(bag, item -> -item, folder.newFile().toPath());
+    }
+    
+    private AVLTreeBag<Long> roundTrip(AVLTreeBag<Long> bag) throws IOException {
+        return AVLTreeBagSnapshot.read(write(bag).toPath(), Long::valueOf);
+    }
+    
+    private File write(AVLTreeBag<Long> bag) throws IOException {
+        File file = folder.newFile();
+        AVLTreeBagSnapshot.write(bag, Long::longValue, file.toPath());
+        return file;
+    }
+    
+}
@@ -4,6 +4,21 @@ import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
 import junit.framework.Assert;
 
 import org.junit.Ignore;
@@ -84,8 +99,8 @@ public class AVLTreeBagTest {
     @Test
     public void checkConsistency() {
         _3.setRight(_4);
-        _4.setRight(_5);
-        toTest.checkConsistency(_5, true);
+        _4.attachRight(_5); // as an add would, leaving the heights above stale
+        toTest.checkConsistency(_4);
         check4IsNewRootAndBalanced();
     }
     
@@ -143,7 +158,7 @@ public class AVLTreeBagTest {
         assertEquals(0, toTest.size());
     }
     
-    @Test(expected=NullPointerException.class)
+    @Test(expected=NoSuchElementException.class)
     public void emptyGet() {
         toTest.elementAtPercentile(0);
     }
@@ -167,12 +182,40 @@ public class AVLTreeBagTest {
         toTest.add(10);
         Node<Integer> root = toTest.getRoot();
         assertEquals(2, toTest.size());
-        assertEquals(1, root.getNumberOfChildren());
+        assertEquals(2, root.getCount());
+        checkNoChildren(root);
         // add another
         toTest.add(10);
         assertEquals(3, toTest.size());
         root = toTest.getRoot();
-        assertEquals(2, root.getNumberOfChildren());
+        assertEquals(3, root.getCount());
+        assertEquals(3, root.getSize());
+        checkNoChildren(root);
+    }
+    
+    @Test
+    public void dupesShareNodes() {
+        for (int i = 0 ; i < 10000 ; i++) {
+            toTest.add(i % 10);
+        }
+        assertEquals(10000, toTest.size());
+        checkInvariants(toTest.getRoot());
+        assertEquals(10000, toTest.getRoot().getSize());
+        assertEquals(4, toTest.getRoot().getHeight());
+        assertEquals(Integer.valueOf(0), toTest.elementAtPercentile(0));
+        assertEquals(Integer.valueOf(0), toTest.elementAtPercentile(9));
+        assertEquals(Integer.valueOf(1), toTest.elementAtPercentile(10));
+        assertEquals(Integer.valueOf(9), toTest.elementAtPercentile(91));
+        assertEquals(Arrays.asList(0, 1, 5, 9), toTest.elementsAtPercentiles(9.99, 10, 55, 99.9));
+        
+        for (int i = 0 ; i < 999 ; i++) {
+            assertTrue(toTest.remove(5));
+        }
+        checkInvariants(toTest.getRoot());
+        assertTrue(toTest.remove(5));
+        assertFalse(toTest.remove(5));
+        checkInvariants(toTest.getRoot());
+        assertEquals(9000, toTest.size());
     }
     
     @Test
@@ -185,6 +228,677 @@ public class AVLTreeBagTest {
         }
     }
 
+    @Test
+    public void cachedValuesAfterRandomOperations() {
+        Random random = new Random(42);
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0 ; i < 5000 ; i++) {
+            int value = random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(Integer.valueOf(value)), toTest.remove(value));
+            } else {
+                toTest.add(value);
+                expected.add(value);
+            }
+            assertEquals(expected.size(), toTest.size());
+        }
+        checkInvariants(toTest.getRoot());
+        assertEquals(expected.size(), toTest.getRoot().getSize());
+        
+        Collections.sort(expected);
+        for (int percentile = 0 ; percentile <= 100 ; percentile++) {
+            int index = Math.min((expected.size() * percentile + 99) / 100, expected.size() - 1);
+            assertEquals(expected.get(index), toTest.elementAtPercentile(percentile));
+        }
+    }
+    
+    @Test
+    public void logarithmicHeightWhenRemovingFromTheFront() {
+        populate(1024);
+        for (int i = 0 ; i < 1000 ; i++) {
+            assertTrue(toTest.remove(i));
+        }
+        checkInvariants(toTest.getRoot());
+        assertTrue(toTest.getRoot().getHeight() <= 6);
+    }
+    
+    @Test
+    public void fromSorted() {
+        List<Integer> sorted = new ArrayList<Integer>();
+        for (int i = 0 ; i < 1000 ; i++) {
+            sorted.add(i / 3);
+        }
+        toTest = AVLTreeBag.fromSorted(sorted);
+        assertEquals(1000, toTest.size());
+        checkInvariants(toTest.getRoot());
+        assertEquals(9, toTest.getRoot().getHeight()); // 334 distinct
+        assertEquals(Integer.valueOf(300), toTest.elementAtPercentile(90));
+        
+        assertTrue(toTest.remove(5));
+        toTest.add(-1);
+        checkInvariants(toTest.getRoot());
+        assertEquals(Integer.valueOf(-1), toTest.elementAtPercentile(0));
+    }
+    
+    @Test
+    public void fromSortedEmpty() {
+        toTest = AVLTreeBag.fromSorted(new ArrayList<Integer>());
+        assertEquals(0, toTest.size());
+        toTest.add(1);
+        assertEquals(Integer.valueOf(1), toTest.elementAtPercentile(50));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void fromSortedRejectsUnsorted() {
+        AVLTreeBag.fromSorted(Arrays.asList(1, 3, 2));
+    }
+    
+    @Test
+    public void fromUnsorted() {
+        Random random = new Random(42);
+        Integer[] items = new Integer[100000];
+        for (int i = 0 ; i < items.length ; i++) {
+            items[i] = random.nextInt(10000);
+        }
+        List<Integer> expected = new ArrayList<Integer>(Arrays.asList(items));
+        Collections.sort(expected);
+        
+        toTest = AVLTreeBag.fromUnsorted(items);
+        assertEquals(items.length, toTest.size());
+        checkInvariants(toTest.getRoot());
+        for (int percentile = 0 ; percentile <= 100 ; percentile++) {
+            int index = Math.min((expected.size() * percentile + 99) / 100, expected.size() - 1);
+            assertEquals(expected.get(index), toTest.elementAtPercentile(percentile));
+        }
+    }
+    
+    @Test
+    public void elementsAtPercentiles() {
+        populate(1000);
+        List<Integer> elements = toTest.elementsAtPercentiles(99.9, 50, 75, 90, 95, 99, 0, 100, 50);
+        assertEquals(Arrays.asList(999, 500, 750, 900, 950, 990, 0, 999, 500), elements);
+    }
+    
+    @Test
+    public void elementsAtPercentilesMatchesOneAtATime() {
+        Random random = new Random(42);
+        for (int i = 0 ; i < 777 ; i++) {
+            toTest.add(random.nextInt(100));
+        }
+        double[] percentiles = new double[101];
+        for (int i = 0 ; i <= 100 ; i++) {
+            percentiles[i] = 100 - i;
+        }
+        List<Integer> elements = toTest.elementsAtPercentiles(percentiles);
+        for (int i = 0 ; i <= 100 ; i++) {
+            assertEquals(toTest.elementAtPercentile(100 - i), elements.get(i));
+        }
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void elementsAtPercentilesOutOfRange() {
+        populate(10);
+        toTest.elementsAtPercentiles(50, 100.1);
+    }
+    
+    @Test
+    public void rankQueries() {
+        for (int i = 0 ; i < 100 ; i++) {
+            toTest.add(i / 2); // 0, 0, 1, 1, ... 49, 49
+        }
+        assertEquals(0, toTest.countLessThan(0));
+        assertEquals(2, toTest.rank(0));
+        assertEquals(20, toTest.countLessThan(10));
+        assertEquals(22, toTest.rank(10));
+        assertEquals(100, toTest.rank(1000));
+        assertEquals(0, toTest.rank(-1));
+        assertEquals(6, toTest.countBetween(10, 12));
+        assertEquals(2, toTest.countBetween(10, 10));
+        assertEquals(0, toTest.countBetween(50, 60));
+        assertEquals(20d, toTest.percentileOf(10), 0d);
+        assertEquals(100d, toTest.percentileOf(50), 0d);
+        assertEquals(Integer.valueOf(10), toTest.elementAtPercentile((int) toTest.percentileOf(10)));
+    }
+    
+    @Test
+    public void rankQueriesMatchSortedList() {
+        Random random = new Random(42);
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0 ; i < 2000 ; i++) {
+            int value = random.nextInt(300);
+            toTest.add(value);
+            expected.add(value);
+        }
+        Collections.sort(expected);
+        for (int value = -1 ; value <= 301 ; value++) {
+            int lessThan = 0;
+            while (lessThan < expected.size() && expected.get(lessThan) < value) lessThan++;
+            int atMost = lessThan;
+            while (atMost < expected.size() && expected.get(atMost) == value) atMost++;
+            assertEquals(lessThan, toTest.countLessThan(value));
+            assertEquals(atMost, toTest.rank(value));
+            assertEquals(100d * lessThan / expected.size(), toTest.percentileOf(value), 1e-9);
+        }
+    }
+    
+    @Test
+    public void percentileOfEmpty() {
+        assertTrue(Double.isNaN(toTest.percentileOf(1)));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void countBetweenBackwards() {
+        toTest.countBetween(2, 1);
+    }
+
+    @Test
+    public void weightsMatchRepeatedAdds() {
+        Random random = new Random(42);
+        AVLTreeBag<Integer> repeated = new AVLTreeBag<Integer>();
+        for (int i = 0 ; i < 500 ; i++) {
+            int value   = random.nextInt(100);
+            int weight  = 1 + random.nextInt(50);
+            toTest.add(value, weight);
+            for (int j = 0 ; j < weight ; j++) {
+                repeated.add(value);
+            }
+        }
+        for (int i = 0 ; i < 200 ; i++) {
+            int value   = random.nextInt(100);
+            int weight  = 1 + random.nextInt(50);
+            long removed = toTest.remove(value, weight);
+            int expected = 0;
+            while (expected < weight && repeated.remove(value)) expected++;
+            assertEquals(expected, removed);
+        }
+        assertEquals(repeated.totalWeight(), toTest.totalWeight());
+        checkInvariants(toTest.getRoot());
+        for (int percentile = 0 ; percentile <= 100 ; percentile++) {
+            assertEquals(repeated.elementAtPercentile(percentile), toTest.elementAtPercentile(percentile));
+        }
+        for (int value = -1 ; value <= 100 ; value++) {
+            assertEquals(repeated.rank(value), toTest.rank(value));
+        }
+    }
+
+    @Test
+    public void weightsBeyondIntRange() {
+        long heavy = 3L * Integer.MAX_VALUE;
+        toTest.add(1, heavy);
+        toTest.add(2, heavy);
+        toTest.add(3);
+        assertEquals(2 * heavy + 1, toTest.totalWeight());
+        assertEquals(Integer.MAX_VALUE, toTest.size());
+        assertEquals(Integer.valueOf(1), toTest.elementAtPercentile(49));
+        assertEquals(Integer.valueOf(2), toTest.elementAtPercentile(51));
+        assertEquals(Integer.valueOf(3), toTest.elementAtPercentile(100));
+        assertEquals(Arrays.asList(1, 2, 3), toTest.elementsAtPercentiles(0, 99.99, 100));
+        assertEquals(heavy + 1, toTest.countBetween(2, 3));
+
+        assertEquals(heavy, toTest.remove(1, Long.MAX_VALUE));
+        assertEquals(0, toTest.remove(1, 1));
+        assertEquals(Integer.valueOf(2), toTest.elementAtPercentile(0));
+
+        AVLTreeBag<Integer> greater = toTest.splitAtRank(heavy - 1);
+        assertEquals(heavy - 1, toTest.totalWeight());
+        assertEquals(2, greater.totalWeight());
+        assertEquals(Arrays.asList(2, 3), greater.stream().collect(Collectors.toList()));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void weightMustBePositive() {
+        toTest.add(1, 0);
+    }
+
+    @Test
+    public void navigationMatchesTreeMap() {
+        Random random = new Random(42);
+        TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+        for (int i = 0 ; i < 5000 ; i++) {
+            int value = random.nextInt(500);
+            switch (random.nextInt(6)) {
+            case 0:
+                assertEquals(expected.remove(value) != null, toTest.remove(value, Long.MAX_VALUE) > 0);
+                break;
+            case 1:
+                Integer polled = toTest.pollFirst();
+                assertEquals(expected.isEmpty() ? null : expected.firstKey(), polled);
+                if (polled != null && expected.merge(polled, -1, Integer::sum) == 0) expected.remove(polled);
+                break;
+            case 2:
+                polled = toTest.pollLast();
+                assertEquals(expected.isEmpty() ? null : expected.lastKey(), polled);
+                if (polled != null && expected.merge(polled, -1, Integer::sum) == 0) expected.remove(polled);
+                break;
+            default:
+                toTest.add(value);
+                expected.merge(value, 1, Integer::sum);
+            }
+            if (!expected.isEmpty()) {
+                assertEquals(expected.firstKey(), toTest.first());
+                assertEquals(expected.lastKey(), toTest.last());
+            }
+            assertEquals(expected.floorKey(value), toTest.floor(value));
+            assertEquals(expected.lowerKey(value), toTest.lower(value));
+            assertEquals(expected.ceilingKey(value), toTest.ceiling(value));
+            assertEquals(expected.higherKey(value), toTest.higher(value));
+        }
+        checkInvariants(toTest.getRoot());
+    }
+
+    @Test
+    public void extremesAfterStructuralOperations() {
+        populate(100);
+        AVLTreeBag<Integer> greater = toTest.split(60);
+        assertEquals(Integer.valueOf(59), toTest.last());
+        assertEquals(Integer.valueOf(60), greater.first());
+        AVLTreeBag<Integer> middle = toTest.splitAtRank(30);
+        assertEquals(Integer.valueOf(29), toTest.last());
+        assertEquals(Integer.valueOf(30), middle.first());
+        toTest.merge(greater);
+        assertEquals(Integer.valueOf(0), toTest.first());
+        assertEquals(Integer.valueOf(99), toTest.last());
+        toTest.clear();
+        assertNull(toTest.pollFirst());
+        assertNull(toTest.floor(1));
+    }
+
+    @Test(expected=NoSuchElementException.class)
+    public void firstOfEmpty() {
+        toTest.first();
+    }
+
+    @Test
+    public void addAllSortedMatchesAddingOneAtATime() {
+        Random random = new Random(42);
+        AVLTreeBag<Integer> expected = new AVLTreeBag<Integer>();
+        for (int round = 0 ; round < 50 ; round++) {
+            Integer[] batch = new Integer[random.nextInt(300)];
+            for (int i = 0 ; i < batch.length ; i++) {
+                batch[i] = random.nextInt(1000);
+                expected.add(batch[i]);
+            }
+            Arrays.sort(batch);
+            toTest.addAllSorted(batch, 0, batch.length);
+            checkInvariants(toTest.getRoot());
+        }
+        assertEquals(expected.totalWeight(), toTest.totalWeight());
+        assertEquals(expected.stream().collect(Collectors.toList()), toTest.stream().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void addAllSortedRejectsUnsorted() {
+        try {
+            toTest.addAllSorted(new Integer[] {1, 2, 2, 1, 3}, 0, 5);
+            fail();
+        } catch (IllegalArgumentException x) {
+            assertEquals(3, toTest.size()); // those before the first out of order item
+            assertEquals(3, toTest.rank(2));
+        }
+    }
+
+    @Test
+    public void iteratesInOrderWithDuplicates() {
+        Random random = new Random(42);
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0 ; i < 1000 ; i++) {
+            int value = random.nextInt(100);
+            toTest.add(value);
+            expected.add(value);
+        }
+        Collections.sort(expected);
+        
+        List<Integer> iterated = new ArrayList<Integer>();
+        for (Integer item : toTest) {
+            iterated.add(item);
+        }
+        assertEquals(expected, iterated);
+        
+        final List<Integer> visited = new ArrayList<Integer>();
+        toTest.forEach(new Consumer<Integer>() {
+            public void accept(Integer item) {
+                visited.add(item);
+            }
+        });
+        assertEquals(expected, visited);
+        assertEquals(expected, toTest.stream().collect(Collectors.toList()));
+    }
+    
+    @Test
+    public void iteratorRemove() {
+        for (int i = 0 ; i < 100 ; i++) {
+            toTest.add(i % 10);
+        }
+        Iterator<Integer> iterator = toTest.iterator();
+        int seen = 0;
+        while (iterator.hasNext()) {
+            Integer item = iterator.next();
+            seen++;
+            if (item % 2 == 0) {
+                iterator.remove();
+            }
+        }
+        assertEquals(100, seen);
+        assertEquals(50, toTest.size());
+        assertEquals(0, toTest.countBetween(0, 0));
+        assertEquals(10, toTest.countBetween(1, 1));
+        checkInvariants(toTest.getRoot());
+    }
+    
+    @Test
+    public void emptyIteration() {
+        assertFalse(toTest.iterator().hasNext());
+        assertEquals(0, toTest.stream().count());
+    }
+    
+    @Test
+    public void parallelStream() {
+        Random random = new Random(42);
+        long sum = 0;
+        for (int i = 0 ; i < 100000 ; i++) {
+            int value = random.nextInt(5000);
+            toTest.add(value);
+            sum += value;
+        }
+        assertEquals(sum, toTest.stream().parallel().mapToLong(Integer::longValue).sum());
+        assertEquals(100000, toTest.stream().parallel().count());
+        List<Integer> sorted = toTest.stream().parallel().collect(Collectors.toList());
+        for (int i = 1 ; i < sorted.size() ; i++) {
+            assertTrue(sorted.get(i - 1) <= sorted.get(i));
+        }
+    }
+    
+    @Test
+    public void splitsEvenlyAfterPartialTraversal() {
+        populate(101);
+        Spliterator<Integer> suffix = toTest.spliterator();
+        final List<Integer> seen = new ArrayList<Integer>();
+        Consumer<Integer> collect = new Consumer<Integer>() {
+            public void accept(Integer item) {
+                seen.add(item);
+            }
+        };
+        for (int i = 0 ; i < 11 ; i++) {
+            assertTrue(suffix.tryAdvance(collect));
+        }
+        Spliterator<Integer> prefix = suffix.trySplit();
+        assertEquals(45, prefix.estimateSize());
+        assertEquals(45, suffix.estimateSize());
+        prefix.forEachRemaining(collect);
+        suffix.forEachRemaining(collect);
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0 ; i < 101 ; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, seen);
+    }
+    
+    @Test
+    public void joinAndSplit() {
+        Random random = new Random(42);
+        for (int trial = 0 ; trial < 50 ; trial++) {
+            List<Integer> expected  = new ArrayList<Integer>();
+            AVLTreeBag<Integer> bag = new AVLTreeBag<Integer>();
+            for (int i = random.nextInt(500) ; i > 0 ; i--) {
+                int value = random.nextInt(200);
+                bag.add(value);
+                expected.add(value);
+            }
+            Collections.sort(expected);
+            
+            int pivot                   = random.nextInt(220) - 10;
+            AVLTreeBag<Integer> upper   = bag.split(pivot);
+            checkInvariants(bag.getRoot());
+            checkInvariants(upper.getRoot());
+            assertEquals(countBelow(expected, pivot), bag.size());
+            assertEquals(expected, concat(bag, upper));
+            
+            bag.join(upper);
+            assertEquals(0, upper.size());
+            checkInvariants(bag.getRoot());
+            assertEquals(expected, bag.stream().collect(Collectors.toList()));
+            
+            int rank = random.nextInt(expected.size() + 1);
+            upper = bag.splitAtRank(rank);
+            checkInvariants(bag.getRoot());
+            checkInvariants(upper.getRoot());
+            assertEquals(rank, bag.size());
+            assertEquals(expected, concat(bag, upper));
+            
+            bag.join(upper); // may share a value either side of the rank
+            checkInvariants(bag.getRoot());
+            assertEquals(expected, bag.stream().collect(Collectors.toList()));
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void joinOverlapping() {
+        populate(10);
+        AVLTreeBag<Integer> other = new AVLTreeBag<Integer>();
+        other.add(5);
+        toTest.join(other);
+    }
+    
+    @Test
+    public void merge() {
+        Random random = new Random(42);
+        for (int trial = 0 ; trial < 50 ; trial++) {
+            List<Integer> expected      = new ArrayList<Integer>();
+            AVLTreeBag<Integer> first   = randomBag(random, random.nextInt(1000), expected);
+            AVLTreeBag<Integer> second  = randomBag(random, random.nextInt(50), expected);
+            Collections.sort(expected);
+            first.merge(second);
+            checkInvariants(first.getRoot());
+            assertEquals(0, second.size());
+            assertEquals(expected, first.stream().collect(Collectors.toList()));
+        }
+    }
+    
+    @Test
+    public void mergeAll() {
+        Random random                   = new Random(42);
+        List<Integer> expected          = new ArrayList<Integer>();
+        List<AVLTreeBag<Integer>> bags  = new ArrayList<AVLTreeBag<Integer>>();
+        for (int i = 0 ; i < 13 ; i++) {
+            bags.add(randomBag(random, 20000, expected));
+        }
+        Collections.sort(expected);
+        AVLTreeBag<Integer> merged = AVLTreeBag.mergeAll(bags);
+        checkInvariants(merged.getRoot());
+        assertEquals(expected, merged.stream().collect(Collectors.toList()));
+        for (AVLTreeBag<Integer> bag : bags) {
+            assertEquals(0, bag.size());
+        }
+    }
+    
+    @Test
+    public void onlyBagsOrderedAlikeCombine() {
+        AVLTreeBag<Request> byLatency   = new AVLTreeBag<Request>(Request::getLatency);
+        AVLTreeBag<Request> byOther     = new AVLTreeBag<Request>((ToLongFunction<Request>) request -> -request.getLatency());
+        AVLTreeBag<Request> compared    = new AVLTreeBag<Request>(Comparator.comparingLong(Request::getLatency)); // the same order but unkeyed nodes
+        byOther.add(new Request("a", 1));
+        compared.add(new Request("b", 2));
+        for (AVLTreeBag<Request> other : Arrays.asList(byOther, compared)) {
+            try {
+                byLatency.merge(other);
+                fail();
+            } catch (IllegalArgumentException x) { }
+            try {
+                byLatency.join(other);
+                fail();
+            } catch (IllegalArgumentException x) { }
+            try {
+                AVLTreeBag.mergeAll(Arrays.asList(byLatency, other));
+                fail();
+            } catch (IllegalArgumentException x) { }
+            assertEquals(1, other.size()); // left as it was
+        }
+        try {
+            new AVLTreeBag<Integer>().merge(new AVLTreeBag<Integer>(Collections.<Integer>reverseOrder()));
+            fail();
+        } catch (IllegalArgumentException x) { }
+    }
+    
+    @Test
+    public void comparator() {
+        AVLTreeBag<Integer> reversed = new AVLTreeBag<Integer>(Collections.<Integer>reverseOrder());
+        for (int i = 0 ; i < 100 ; i++) {
+            reversed.add(i);
+        }
+        assertEquals(Integer.valueOf(99), reversed.elementAtPercentile(0));
+        assertEquals(Integer.valueOf(0), reversed.elementAtPercentile(100));
+        assertEquals(10, reversed.countLessThan(89));
+        assertEquals(Collections.<Integer>reverseOrder(), reversed.spliterator().getComparator());
+        
+        AVLTreeBag<Integer> lower = reversed.split(49); // the reversed bag's upper half
+        assertEquals(50, reversed.size());
+        assertEquals(Integer.valueOf(0), lower.elementAtPercentile(100));
+        lower.add(100); // still reversed
+        assertEquals(Integer.valueOf(100), lower.elementAtPercentile(0));
+    }
+    
+    @Test
+    public void removeComparesOncePerLevel() {
+        final int[] comparisons = new int[1];
+        AVLTreeBag<Integer> counted = new AVLTreeBag<Integer>(new Comparator<Integer>() {
+            public int compare(Integer left, Integer right) {
+                comparisons[0]++;
+                return left.compareTo(right);
+            }
+        });
+        for (int i = 0 ; i < 1023 ; i++) {
+            counted.add(i);
+        }
+        comparisons[0] = 0;
+        assertTrue(counted.remove(0));
+        assertTrue(comparisons[0] <= counted.getRoot().getHeight() + 1);
+    }
+    
+    @Test
+    public void keyExtractor() {
+        AVLTreeBag<Request> requests = new AVLTreeBag<Request>(Request::getLatency);
+        Random random = new Random(42);
+        for (int i = 0 ; i < 1000 ; i++) {
+            requests.add(new Request("trace" + i, random.nextInt(100000)));
+        }
+        requests.add(new Request("slowest", 1000000));
+        assertTrue(requests.getRoot() instanceof KeyedNode);
+        checkInvariants(requests.getRoot(), Comparator.comparingLong(Request::getLatency));
+        assertEquals("slowest", requests.elementAtPercentile(100).traceId);
+        assertEquals(1000, requests.countLessThan(new Request("probe", 1000000)));
+        
+        assertTrue(requests.remove(new Request("any trace", 1000000)));
+        assertFalse(requests.remove(new Request("any trace", 1000000)));
+        
+        List<Long> latencies = new ArrayList<Long>();
+        for (Request request : requests) {
+            latencies.add(request.getLatency());
+        }
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        assertEquals(sorted, latencies);
+        
+        AVLTreeBag<Request> upper = requests.splitAtRank(500);
+        assertTrue(upper.getRoot() instanceof KeyedNode);
+        requests.merge(upper);
+        checkInvariants(requests.getRoot(), Comparator.comparingLong(Request::getLatency));
+        assertEquals(1000, requests.size());
+    }
+    
+    static class Request {
+        
+        final String    traceId;
+        final long      latency;
+        
+        Request(String traceId, long latency) {
+            this.traceId = traceId;
+            this.latency = latency;
+        }
+        
+        long getLatency() {
+            return latency;
+        }
+    }
+    
+    @Test
+    public void sortedInsertsStayShallow() {
+        int n = 10000000;
+        for (int i = 0 ; i < n ; i++) {
+            toTest.add(i);
+        }
+        assertEquals(n, toTest.size());
+        assertTrue(toTest.getRoot().getHeight() <= maxHeight(n));
+        
+        for (int i = 0 ; i < n / 2 ; i++) {
+            toTest.remove(i);
+        }
+        assertTrue(toTest.getRoot().getHeight() <= maxHeight(n / 2));
+        assertEquals(Integer.valueOf(n / 2), toTest.elementAtPercentile(0));
+    }
+    
+    /**
+     * @return the greatest height an AVL tree of n nodes can have
+     */
+    static int maxHeight(int n) {
+        return (int) (1.44 * Math.log(n + 2) / Math.log(2) - 0.328);
+    }
+    
+    private static AVLTreeBag<Integer> randomBag(Random random, int size, List<Integer> added) {
+        AVLTreeBag<Integer> bag = new AVLTreeBag<Integer>();
+        for (int i = 0 ; i < size ; i++) {
+            int value = random.nextInt(size * 2 + 1);
+            bag.add(value);
+            added.add(value);
+        }
+        return bag;
+    }
+    
+    private static int countBelow(List<Integer> sorted, int item) {
+        int count = 0;
+        while (count < sorted.size() && sorted.get(count) < item) {
+            count++;
+        }
+        return count;
+    }
+    
+    private static List<Integer> concat(AVLTreeBag<Integer> lower, AVLTreeBag<Integer> upper) {
+        List<Integer> all = lower.stream().collect(Collectors.toList());
+        all.addAll(upper.stream().collect(Collectors.toList()));
+        return all;
+    }
+    
+    /**
+     * Recalculates the height and size of every node from scratch and checks them 
+     * against the cached values, the AVL balance, the ordering (with duplicates sharing
+     * a node) and the parent links.
+     * @return the height of the subtree
+     */
+    static <T extends Comparable<T>> int checkInvariants(Node<T> node) {
+        return checkInvariants(node, Comparator.<T>naturalOrder());
+    }
+    
+    static <T> int checkInvariants(Node<T> node, java.util.Comparator<? super T> comparator) {
+        if (node == null) return 0;
+        Node<T> left    = node.getLeft();
+        Node<T> right   = node.getRight();
+        if (left != null) {
+            assertSame(node, left.getParent());
+            assertTrue(comparator.compare(left.getItem(), node.getItem()) < 0);
+        }
+        if (right != null) {
+            assertSame(node, right.getParent());
+            assertTrue(comparator.compare(right.getItem(), node.getItem()) > 0);
+        }
+        assertTrue(node.getCount() > 0);
+        int leftHeight  = checkInvariants(left, comparator);
+        int rightHeight = checkInvariants(right, comparator);
+        int height      = 1 + Math.max(leftHeight, rightHeight);
+        assertEquals(height, node.getHeight());
+        assertEquals(node.getCount() + Node.sizeOf(left) + Node.sizeOf(right), node.getSize());
+        assertTrue(node.toString(), Math.abs(node.balance()) <= 1);
+        return height;
+    }
+
     private void populate(int total) {
         for (int i = 0 ; i < total ; i++) {
             toTest.add(i);
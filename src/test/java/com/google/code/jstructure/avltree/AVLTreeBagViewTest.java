@@ -0,0 +1,94 @@
+package com.google.code.jstructure.avltree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class AVLTreeBagViewTest {
+
+    private AVLTreeBag<Integer> bag = new AVLTreeBag<Integer>();
+
+    @Test
+    public void percentilesWithinRange() {
+        Random random       = new Random(42);
+        List<Integer> all   = new ArrayList<Integer>();
+        for (int i = 0 ; i < 3000 ; i++) {
+            int value = random.nextInt(1000);
+            bag.add(value);
+            all.add(value);
+        }
+        Collections.sort(all);
+        checkAgainst(bag.subBag(200, true, 300, false), all, 200, true, 300, false);
+        checkAgainst(bag.subBag(200, false, 300, true), all, 200, false, 300, true);
+        checkAgainst(bag.headBag(100, false), all, Integer.MIN_VALUE, true, 100, false);
+        checkAgainst(bag.tailBag(900, true), all, 900, true, Integer.MAX_VALUE, true);
+    }
+
+    private void checkAgainst(AVLTreeBagView<Integer> view, List<Integer> all, int from, boolean fromInclusive, int to, boolean toInclusive) {
+        List<Integer> expected = new ArrayList<Integer>();
+        for (Integer value : all) {
+            if ((value > from || (fromInclusive && value == from)) && (value < to || (toInclusive && value == to))) {
+                expected.add(value);
+            }
+        }
+        assertEquals(expected.size(), view.size());
+        assertEquals(expected, view.stream().collect(Collectors.toList()));
+        assertEquals(expected.get(0), view.first());
+        assertEquals(expected.get(expected.size() - 1), view.last());
+        for (int percentile = 0 ; percentile <= 100 ; percentile++) {
+            int index = Math.min((expected.size() * percentile + 99) / 100, expected.size() - 1);
+            assertEquals(expected.get(index), view.elementAtPercentile(percentile));
+        }
+    }
+
+    @Test
+    public void viewsAreLive() {
+        AVLTreeBagView<Integer> view = bag.subBag(10, true, 20, true);
+        assertEquals(0, view.size());
+        for (int i = 0 ; i < 30 ; i++) {
+            bag.add(i);
+        }
+        assertEquals(11, view.size());
+        view.add(15);
+        assertEquals(12, view.size());
+        assertEquals(31, bag.size());
+        assertTrue(view.remove(10));
+        assertFalse(view.remove(25));
+        assertEquals(Integer.valueOf(11), view.first());
+        assertEquals(Integer.valueOf(16), view.elementAtPercentile(50));
+        assertEquals(Arrays.asList(11, 12, 13, 14, 15, 15, 16, 17, 18, 19, 20), view.stream().collect(Collectors.toList()));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void cannotAddOutOfRange() {
+        bag.headBag(10, false).add(10);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void boundsMustBeInOrder() {
+        bag.subBag(2, true, 1, true);
+    }
+
+    @Test(expected=NoSuchElementException.class)
+    public void firstOfEmptyRange() {
+        bag.add(5);
+        bag.subBag(1, true, 5, false).first();
+    }
+
+    @Test(expected=NoSuchElementException.class)
+    public void percentileOfEmptyRange() {
+        bag.add(5);
+        bag.tailBag(5, false).elementAtPercentile(50);
+    }
+
+}
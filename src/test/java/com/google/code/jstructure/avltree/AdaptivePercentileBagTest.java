@@ -0,0 +1,43 @@
+package com.google.code.jstructure.avltree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AdaptivePercentileBagTest {
+    
+    private AdaptivePercentileBag<Integer> toTest = new AdaptivePercentileBag<Integer>(1000, 0.01);
+    
+    @Test
+    public void exactUpToThreshold() {
+        for (int i = 0 ; i < 1000 ; i++) {
+            toTest.add(i);
+        }
+        assertTrue(toTest.isExact());
+        assertEquals(1000, toTest.size());
+        assertEquals(Integer.valueOf(900), toTest.elementAtPercentile(90));
+    }
+    
+    @Test
+    public void switchesToSketchBeyondThreshold() {
+        AVLTreeBag<Integer> exact = new AVLTreeBag<Integer>();
+        Random random = new Random(42);
+        for (int i = 0 ; i < 50000 ; i++) {
+            int value = random.nextInt(100000);
+            toTest.add(value);
+            exact.add(value);
+        }
+        assertFalse(toTest.isExact());
+        assertEquals(50000, toTest.size());
+        for (int percentile = 0 ; percentile <= 100 ; percentile += 10) {
+            int expected    = exact.elementAtPercentile(percentile);
+            int actual      = toTest.elementAtPercentile(percentile);
+            assertEquals(expected, actual, 2 * 0.01 * 100000);
+        }
+    }
+    
+}
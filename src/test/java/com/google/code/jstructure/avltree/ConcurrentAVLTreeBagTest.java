@@ -0,0 +1,183 @@
+package com.google.code.jstructure.avltree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class ConcurrentAVLTreeBagTest {
+    
+    private ConcurrentAVLTreeBag<Integer> toTest = new ConcurrentAVLTreeBag<Integer>(4);
+    
+    @Test
+    public void emptySize() {
+        assertEquals(0, toTest.size());
+    }
+    
+    @Test(expected=NoSuchElementException.class)
+    public void emptyGet() {
+        toTest.elementAtPercentile(50);
+    }
+    
+    @Test
+    public void percentilesAcrossStripes() throws Exception {
+        final List<Integer> expected = Collections.synchronizedList(new ArrayList<Integer>());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0 ; t < 4 ; t++) {
+            final int seed = t;
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0 ; i < 250 ; i++) {
+                        int value = random.nextInt(300);
+                        toTest.add(value);
+                        expected.add(value);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        
+        Collections.sort(expected);
+        assertEquals(expected.size(), toTest.size());
+        for (int percentile = 0 ; percentile <= 100 ; percentile++) {
+            int index = Math.min((expected.size() * percentile + 99) / 100, expected.size() - 1);
+            assertEquals(expected.get(index), toTest.elementAtPercentile(percentile));
+        }
+    }
+    
+    @Test
+    public void selectsAcrossManyUnevenStripes() throws Exception {
+        toTest = new ConcurrentAVLTreeBag<Integer>(16);
+        final List<Integer> expected = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0 ; t < 12 ; t++) {
+            final int seed = t;
+            threads.add(new Thread() {
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0 ; i < 50 * seed * seed ; i++) {
+                        int value = seed % 3 == 0 ? random.nextInt(10) : seed * 100 + random.nextInt(1000);
+                        toTest.add(value);
+                        expected.add(value);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        Collections.sort(expected);
+        assertEquals(expected.size(), toTest.size());
+        for (int percentile = 0 ; percentile <= 100 ; percentile++) {
+            int index = Math.min((expected.size() * percentile + 99) / 100, expected.size() - 1);
+            assertEquals(expected.get(index), toTest.elementAtPercentile(percentile));
+        }
+    }
+    
+    @Test
+    public void removeFromAnotherThreadsStripe() throws Exception {
+        Thread adder = new Thread() {
+            public void run() {
+                toTest.add(7);
+            }
+        };
+        adder.start();
+        adder.join();
+        assertFalse(toTest.remove(8));
+        assertTrue(toTest.remove(7));
+        assertEquals(0, toTest.size());
+    }
+    
+    @Test
+    public void invariantsHoldUnderContention() throws Exception {
+        final int writers                   = 8;
+        final int opsPerWriter              = 20000;
+        final AtomicBoolean writing         = new AtomicBoolean(true);
+        final CountDownLatch start          = new CountDownLatch(1);
+        ExecutorService executor            = Executors.newFixedThreadPool(writers + 2);
+        
+        List<Future<Integer>> writes = new ArrayList<Future<Integer>>();
+        for (int t = 0 ; t < writers ; t++) {
+            final int seed = t;
+            writes.add(executor.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    start.await();
+                    Random random   = new Random(seed);
+                    int net         = 0;
+                    for (int i = 0 ; i < opsPerWriter ; i++) {
+                        int value = random.nextInt(1000);
+                        if (random.nextInt(4) == 0) {
+                            if (toTest.remove(value)) net--;
+                        } else {
+                            toTest.add(value);
+                            net++;
+                        }
+                    }
+                    return net;
+                }
+            }));
+        }
+        List<Future<Integer>> reads = new ArrayList<Future<Integer>>();
+        for (int t = 0 ; t < 2 ; t++) {
+            reads.add(executor.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    start.await();
+                    int numReads = 0;
+                    while (writing.get()) {
+                        try {
+                            int median  = toTest.elementAtPercentile(50);
+                            int p99     = toTest.elementAtPercentile(99);
+                            assertTrue(median >= 0 && median < 1000);
+                            assertTrue(p99 >= 0 && p99 < 1000);
+                            numReads++;
+                        } catch (NoSuchElementException x) {
+                            // the writers emptied the bag
+                        }
+                    }
+                    return numReads;
+                }
+            }));
+        }
+        start.countDown();
+        int expectedSize = 0;
+        for (Future<Integer> write : writes) {
+            expectedSize += write.get();
+        }
+        writing.set(false);
+        for (Future<Integer> read : reads) {
+            read.get();
+        }
+        executor.shutdown();
+        
+        assertEquals(expectedSize, toTest.size());
+        int total = 0;
+        for (PersistentAVLTreeBag<Integer> stripe : toTest.getStripes()) {
+            PersistentAVLTreeBagTest.checkInvariants(stripe.getRoot());
+            total += stripe.size();
+        }
+        assertEquals(expectedSize, total);
+    }
+    
+}
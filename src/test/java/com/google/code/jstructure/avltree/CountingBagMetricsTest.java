@@ -0,0 +1,108 @@
+package com.google.code.jstructure.avltree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+
+import com.google.code.jstructure.avltree.BagMetrics.Operation;
+import com.google.code.jstructure.avltree.BagMetrics.Rotation;
+
+public class CountingBagMetricsTest {
+    
+    private final CountingBagMetrics    metrics = new CountingBagMetrics();
+    private final AVLTreeBag<Integer>   toTest  = new AVLTreeBag<Integer>(metrics);
+    
+    @Test
+    public void ascendingAddsOnlyRotateLeft() {
+        for (int i = 0 ; i < 1023 ; i++) {
+            toTest.add(i);
+        }
+        assertEquals(1023 - 10, metrics.getRotations(Rotation.RIGHT_RIGHT)); // all but the first of each level
+        assertEquals(metrics.getRotations(Rotation.RIGHT_RIGHT), metrics.getRotations());
+        assertEquals(1022, metrics.getDescents()); // the first add had nothing to descend
+        assertEquals(1023, metrics.getOperations(Operation.ADD));
+        long[] depths = metrics.getDepthHistogram();
+        for (int depth = 11 ; depth < depths.length ; depth++) {
+            assertEquals(0, depths[depth]);
+        }
+    }
+    
+    @Test
+    public void countsDescentsAndQueries() {
+        for (int i = 0 ; i < 7 ; i++) {
+            toTest.add(i);
+        }
+        long descents = metrics.getDescents();
+        long[] depths = metrics.getDepthHistogram();
+        assertTrue(toTest.remove(6));
+        assertFalse(toTest.remove(6));
+        assertEquals(Integer.valueOf(5), toTest.elementAtPercentile(100));
+        assertEquals(2, metrics.getOperations(Operation.REMOVE));
+        assertEquals(1, metrics.getOperations(Operation.PERCENTILE));
+        assertEquals(descents + 3, metrics.getDescents());
+        assertEquals(depths[3] + 1, metrics.getDepthHistogram()[3]); // 6 was a leaf
+        assertEquals(depths[2] + 2, metrics.getDepthHistogram()[2]); // then 5 is
+    }
+    
+    @Test
+    public void everyPathIsInstrumented() {
+        toTest.addAllSorted(new Integer[] {1, 2, 2, 3, 5, 8}, 0, 6);
+        assertEquals(1, metrics.getOperations(Operation.ADD));
+        assertEquals(1, toTest.remove(2, 1));
+        assertEquals(Integer.valueOf(1), toTest.pollFirst());
+        assertEquals(Integer.valueOf(8), toTest.pollLast());
+        assertEquals(3, metrics.getOperations(Operation.REMOVE));
+        toTest.elementsAtPercentiles(50, 99);
+        assertEquals(1, metrics.getOperations(Operation.PERCENTILE));
+        long descents = metrics.getDescents();
+        assertEquals(Integer.valueOf(3), toTest.floor(4));
+        assertEquals(Integer.valueOf(5), toTest.higher(3));
+        assertEquals(2, toTest.rank(3));
+        assertEquals(3, metrics.getOperations(Operation.SEARCH));
+        assertEquals(descents + 3, metrics.getDescents());
+    }
+    
+    @Test
+    public void buckets() {
+        assertEquals(0, CountingBagMetrics.bucketOf(0));
+        assertEquals(1, CountingBagMetrics.bucketOf(1));
+        assertEquals(2, CountingBagMetrics.bucketOf(2));
+        assertEquals(2, CountingBagMetrics.bucketOf(3));
+        assertEquals(11, CountingBagMetrics.bucketOf(1024));
+        assertEquals(63, CountingBagMetrics.bucketOf(Long.MAX_VALUE));
+    }
+    
+    @Test
+    public void slowOperationsAreRecorded() throws IOException {
+        AVLTreeBag<Integer> bag = new AVLTreeBag<Integer>(new CountingBagMetrics(0));
+        Path file = Files.createTempFile("bag", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(SlowOperationEvent.class).withoutThreshold();
+            recording.start();
+            for (int i = 0 ; i < 10 ; i++) {
+                bag.add(i);
+            }
+            recording.stop();
+            recording.dump(file);
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            assertEquals(10, events.size());
+            RecordedEvent last = events.get(events.size() - 1);
+            assertEquals("ADD", last.getString("operation"));
+            assertEquals(4, last.getInt("height"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+    
+}
@@ -0,0 +1,72 @@
+package com.google.code.jstructure.avltree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DecayingAVLTreeBagTest {
+
+    @Test
+    public void sizeIsBounded() {
+        DecayingAVLTreeBag<Integer> toTest = new DecayingAVLTreeBag<Integer>(100, 0.01, new Random(42));
+        for (int i = 0 ; i < 100000 ; i++) {
+            toTest.add(i % 37, i / 10);
+        }
+        assertEquals(100, toTest.size());
+        assertEquals(100, toTest.getBag().size());
+        AVLTreeBagTest.checkInvariants(toTest.getBag().getRoot());
+    }
+
+    @Test
+    public void uniformWithoutDecay() {
+        DecayingAVLTreeBag<Integer> toTest = new DecayingAVLTreeBag<Integer>(1000, 0, new Random(42));
+        for (int i = 0 ; i < 100000 ; i++) {
+            toTest.add(i);
+        }
+        assertEquals(1000, toTest.size());
+        assertEquals(50000, toTest.elementAtPercentile(50), 5000);
+        assertEquals(10000, toTest.elementAtPercentile(10), 5000);
+        assertEquals(90000, toTest.elementAtPercentile(90), 5000);
+    }
+
+    @Test
+    public void favoursRecentItems() {
+        DecayingAVLTreeBag<Integer> toTest = new DecayingAVLTreeBag<Integer>(1000, 0.1, new Random(42));
+        for (int second = 0 ; second < 1000 ; second++) {
+            for (int i = 0 ; i < 100 ; i++) {
+                toTest.add(second, second);
+            }
+        }
+        assertEquals(1000, toTest.size());
+        assertTrue(toTest.elementAtPercentile(1) > 900);
+        assertTrue(toTest.elementAtPercentile(50) > 980);
+        assertEquals(Integer.valueOf(999), toTest.elementAtPercentile(100));
+    }
+
+    @Test
+    public void zeroIsNotDrawn() {
+        Random random = new Random() {
+            private final double[] draws = {0, 0.5, 0.5};
+            private int next;
+            @Override
+            public double nextDouble() {
+                return draws[next++];
+            }
+        };
+        DecayingAVLTreeBag<Integer> toTest = new DecayingAVLTreeBag<Integer>(1, 1, random);
+        toTest.add(1, 0);
+        toTest.add(2, 1000);
+        assertEquals(Integer.valueOf(2), toTest.elementAtPercentile(50));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void timestampsMustNotGoBackwards() {
+        DecayingAVLTreeBag<Integer> toTest = new DecayingAVLTreeBag<Integer>(10, 1);
+        toTest.add(1, 10);
+        toTest.add(1, 9);
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.google.code.jstructure.avltree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class DoubleAVLTreeBagTest {
+    
+    private DoubleAVLTreeBag toTest = new DoubleAVLTreeBag();
+    
+    @Test
+    public void sortableRoundTrip() {
+        double[] values = {Double.NEGATIVE_INFINITY, -Double.MAX_VALUE, -1.5, -Double.MIN_VALUE, -0.0, 
+                0.0, Double.MIN_VALUE, 1.5, Double.MAX_VALUE, Double.POSITIVE_INFINITY, Double.NaN};
+        for (int i = 0 ; i < values.length ; i++) {
+            assertEquals(values[i], DoubleAVLTreeBag.fromSortable(DoubleAVLTreeBag.toSortable(values[i])), 0d);
+            if (i > 0) {
+                assertTrue(values[i] + "", DoubleAVLTreeBag.toSortable(values[i - 1]) < DoubleAVLTreeBag.toSortable(values[i]));
+            }
+        }
+    }
+    
+    @Test
+    public void sameOrderAsDoubleCompare() {
+        double[] values = {3.25, -7, 0.0, 1e-300, -1e300, 42, -0.0, 2.5};
+        for (double value : values) {
+            toTest.add(value);
+        }
+        Arrays.sort(values);
+        for (int i = 0 ; i < values.length ; i++) {
+            int percentile = i * 100 / values.length;
+            assertEquals(0, Double.compare(values[i], toTest.elementAtPercentile(percentile)));
+        }
+    }
+    
+    @Test
+    public void remove() {
+        toTest.add(0.5);
+        toTest.add(-0.5);
+        assertFalse(toTest.remove(0.25));
+        assertTrue(toTest.remove(-0.5));
+        assertEquals(1, toTest.size());
+        assertEquals(0.5, toTest.elementAtPercentile(50), 0d);
+    }
+    
+}
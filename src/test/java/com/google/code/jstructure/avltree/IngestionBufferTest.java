@@ -0,0 +1,79 @@
+package com.google.code.jstructure.avltree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class IngestionBufferTest {
+
+    private IngestionBuffer<Integer> toTest = new IngestionBuffer<Integer>(new AVLTreeBag<Integer>(), 6);
+
+    @Test
+    public void fullBufferRejects() {
+        for (int i = 0 ; i < 8 ; i++) {
+            assertTrue(toTest.offer(8 - i));
+        }
+        assertFalse(toTest.offer(0));
+        assertEquals(8, toTest.pending());
+        assertEquals(8, toTest.drain());
+        assertEquals(0, toTest.drain());
+        assertTrue(toTest.offer(0));
+        assertEquals(1, toTest.drain());
+        assertEquals(9, toTest.getBag().size());
+        assertEquals(Integer.valueOf(0), toTest.getBag().elementAtPercentile(0));
+        assertEquals(Integer.valueOf(8), toTest.getBag().elementAtPercentile(100));
+    }
+
+    @Test
+    public void producersAndConsumerConcurrently() throws Exception {
+        toTest = new IngestionBuffer<Integer>(new AVLTreeBag<Integer>(), 1024);
+        final List<Integer> expected = Collections.synchronizedList(new ArrayList<Integer>());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0 ; t < 4 ; t++) {
+            final int seed = t;
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0 ; i < 50000 ; i++) {
+                        int value = random.nextInt(10000);
+                        while (!toTest.offer(value)) {
+                            Thread.yield();
+                        }
+                        expected.add(value);
+                    }
+                }
+            }));
+        }
+        int drained = 0;
+        while (drained < 200000) {
+            drained += toTest.drain();
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(0, toTest.drain());
+        AVLTreeBagTest.checkInvariants(toTest.getBag().getRoot());
+        Collections.sort(expected);
+        assertEquals(expected, toTest.getBag().stream().collect(Collectors.toList()));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void cannotOfferNull() {
+        toTest.offer(null);
+    }
+
+}
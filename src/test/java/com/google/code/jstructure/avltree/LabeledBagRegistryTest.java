@@ -0,0 +1,129 @@
+package com.google.code.jstructure.avltree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class LabeledBagRegistryTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private LabeledBagRegistry<String, Integer> toTest = new LabeledBagRegistry<String, Integer>(4, 100, 1000, now::get);
+
+    @Test
+    public void bagsAreCreatedLazily() {
+        assertEquals(0, toTest.numberOfBags());
+        assertNull(toTest.elementAtPercentile("GET /a", 50));
+        assertEquals(0, toTest.size("GET /a"));
+        for (int i = 0 ; i < 10 ; i++) {
+            toTest.add("GET /a", i);
+            toTest.add("GET /b", 100 + i);
+        }
+        assertEquals(2, toTest.numberOfBags());
+        assertEquals(Integer.valueOf(5), toTest.elementAtPercentile("GET /a", 50));
+        assertEquals(Integer.valueOf(109), toTest.elementAtPercentile("GET /b", 100));
+        assertTrue(toTest.remove("GET /a"));
+        assertFalse(toTest.remove("GET /a"));
+        assertEquals(1, toTest.numberOfBags());
+    }
+
+    @Test
+    public void bagsAreCapped() {
+        for (int i = 0 ; i < 1000 ; i++) {
+            toTest.add("GET /a", i);
+        }
+        assertEquals(100, toTest.size("GET /a"));
+        assertEquals(Integer.valueOf(900), toTest.elementAtPercentile("GET /a", 0));
+    }
+
+    @Test
+    public void idleBagsAreEvicted() {
+        toTest.add("GET /a", 1);
+        toTest.add("GET /b", 1);
+        now.set(600);
+        toTest.add("GET /b", 2);
+        assertEquals(0, toTest.evictIdle());
+        now.set(1001);
+        assertEquals(1, toTest.evictIdle());
+        assertEquals(0, toTest.size("GET /a"));
+        assertEquals(2, toTest.size("GET /b"));
+        now.set(1601);
+        assertEquals(1, toTest.evictIdle());
+        assertEquals(0, toTest.numberOfBags());
+    }
+
+    @Test
+    public void addsEvictIdleBagsInTheirStripe() {
+        LabeledBagRegistry<String, Integer> toTest = new LabeledBagRegistry<String, Integer>(1, 100, 1000, now::get);
+        toTest.add("GET /a", 1);
+        toTest.add("GET /b", 1);
+        now.set(500);
+        toTest.add("GET /b", 2);
+        now.set(1001);
+        toTest.add("GET /c", 1);
+        assertEquals(2, toTest.numberOfBags());
+        assertEquals(0, toTest.size("GET /a"));
+        assertEquals(2, toTest.size("GET /b"));
+    }
+
+    @Test
+    public void snapshotOfEveryBag() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0 ; t < 4 ; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    for (int label = thread ; label < 200 ; label += 4) {
+                        for (int i = 0 ; i <= 100 ; i++) {
+                            toTest.add("endpoint" + label, label + i);
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        Map<String, List<Integer>> snapshot = toTest.snapshot(50, 99, 0);
+        assertEquals(200, snapshot.size());
+        for (int label = 0 ; label < 200 ; label++) {
+            assertEquals(Arrays.asList(label + 51, label + 100, label + 1), snapshot.get("endpoint" + label));
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void cannotAddNullLabel() {
+        toTest.add(null, 1);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void cannotReadNullLabel() {
+        toTest.elementAtPercentile(null, 50);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void cannotSizeNullLabel() {
+        toTest.size(null);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void cannotRemoveNullLabel() {
+        toTest.remove(null);
+    }
+
+}
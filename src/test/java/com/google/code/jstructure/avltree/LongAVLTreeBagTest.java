@@ -0,0 +1,196 @@
+package com.google.code.jstructure.avltree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongAVLTreeBagTest {
+    
+    private LongAVLTreeBag toTest = new LongAVLTreeBag();
+    
+    @Test
+    public void emptySize() {
+        assertEquals(0, toTest.size());
+    }
+    
+    @Test
+    public void elementAt() {
+        populate(1000);
+        assertEquals(900L, toTest.elementAtPercentile(90));
+        assertEquals(0L, toTest.elementAtPercentile(0));
+        assertEquals(999L, toTest.elementAtPercentile(100));
+    }
+    
+    @Test
+    public void elementAtWithRoundingUp(){
+        populate(16);
+        assertEquals(15L, toTest.elementAtPercentile(90));
+    }
+    
+    @Test
+    public void negativesAndExtremes() {
+        toTest.add(Long.MAX_VALUE);
+        toTest.add(Long.MIN_VALUE);
+        toTest.add(-1);
+        toTest.add(0);
+        assertEquals(Long.MIN_VALUE, toTest.elementAtPercentile(0));
+        assertEquals(-1L, toTest.elementAtPercentile(25));
+        assertEquals(Long.MAX_VALUE, toTest.elementAtPercentile(100));
+    }
+    
+    @Test
+    public void remove() {
+        int total = 10;
+        populate(total);
+        assertFalse(toTest.remove(total));
+        for (int i = total ; i > 0 ; --i) {
+            assertTrue("" + i, toTest.remove(i - 1));
+            assertEquals(i - 1, toTest.size());
+        }
+    }
+    
+    @Test
+    public void randomOperations() {
+        randomOperations(toTest);
+    }
+    
+    @Test
+    public void randomOperationsOffHeap() {
+        randomOperations(new LongAVLTreeBag(new DirectLongNodeStorage(4)));
+    }
+    
+    @Test
+    public void removedNodesAreReused() {
+        populate(100);
+        LongNodeStorage nodes = toTest.getNodes();
+        assertEquals(100, nodes.used());
+        for (int i = 0 ; i < 50 ; i++) {
+            assertTrue(toTest.remove(i * 2));
+        }
+        for (int i = 0 ; i < 50 ; i++) {
+            toTest.add(1000 + i);
+        }
+        assertEquals(100, nodes.used());
+        assertEquals(100, toTest.size());
+        checkInvariants(nodes, nodes.getRoot());
+    }
+    
+    @Test
+    public void directStorageGrowsByChunk() {
+        DirectLongNodeStorage nodes = new DirectLongNodeStorage(3);
+        LongAVLTreeBag bag = new LongAVLTreeBag(nodes);
+        assertEquals(0, nodes.capacity());
+        bag.add(100);
+        assertEquals(8, nodes.capacity());
+        for (int i = 0 ; i < 8 ; i++) {
+            bag.add(i);
+        }
+        assertEquals(16, nodes.capacity());
+        assertEquals(9, bag.size());
+    }
+    
+    @Test
+    public void duplicatesShareANode() {
+        for (int i = 0 ; i < 3 ; i++) {
+            toTest.add(7);
+            toTest.add(5);
+        }
+        LongNodeStorage nodes = toTest.getNodes();
+        assertEquals(2, nodes.used());
+        assertEquals(6, toTest.size());
+        assertEquals(5L, toTest.elementAtPercentile(33));
+        assertEquals(7L, toTest.elementAtPercentile(34));
+        assertTrue(toTest.remove(5));
+        assertTrue(toTest.remove(5));
+        assertEquals(7L, toTest.elementAtPercentile(50));
+        assertTrue(toTest.remove(5));
+        assertFalse(toTest.remove(5));
+        assertEquals(3, toTest.size());
+        checkInvariants(nodes, nodes.getRoot());
+    }
+    
+    @Test
+    public void moreItemsThanAnIntCanCount() {
+        populate(3);
+        LongNodeStorage nodes = toTest.getNodes();
+        int root = nodes.getRoot();
+        nodes.setCount(root, 3000000000L); // as if added that many times
+        nodes.updateSizes(root);
+        assertEquals(3000000002L, toTest.size());
+        assertEquals(1L, toTest.elementAtPercentile(50));
+        assertEquals(2L, toTest.elementAtPercentile(100));
+        assertTrue(toTest.remove(1));
+        assertEquals(3000000001L, toTest.size());
+    }
+    
+    private void randomOperations(LongAVLTreeBag bag) {
+        Random random = new Random(42);
+        List<Long> expected = new ArrayList<Long>();
+        for (int i = 0 ; i < 5000 ; i++) {
+            long value = random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(Long.valueOf(value)), bag.remove(value));
+            } else {
+                bag.add(value);
+                expected.add(value);
+            }
+        }
+        assertEquals(expected.size(), bag.size());
+        LongNodeStorage nodes = bag.getNodes();
+        checkInvariants(nodes, nodes.getRoot());
+        
+        Collections.sort(expected);
+        for (int percentile = 0 ; percentile <= 100 ; percentile++) {
+            int index = Math.min((expected.size() * percentile + 99) / 100, expected.size() - 1);
+            assertEquals(expected.get(index).longValue(), bag.elementAtPercentile(percentile));
+        }
+    }
+    
+    static int checkInvariants(LongNodeStorage nodes, int node) {
+        if (node == LongNodeStorage.NIL) return 0;
+        int left    = nodes.getLeft(node);
+        int right   = nodes.getRight(node);
+        if (left != LongNodeStorage.NIL) {
+            assertEquals(node, nodes.getParent(left));
+            assertTrue(nodes.getItem(left) < nodes.getItem(node));
+        }
+        if (right != LongNodeStorage.NIL) {
+            assertEquals(node, nodes.getParent(right));
+            assertTrue(nodes.getItem(right) > nodes.getItem(node));
+        }
+        assertTrue(nodes.getCount(node) > 0);
+        int height = 1 + Math.max(checkInvariants(nodes, left), checkInvariants(nodes, right));
+        assertEquals(height, nodes.getHeight(node));
+        assertEquals(nodes.getCount(node) + nodes.sizeOf(left) + nodes.sizeOf(right), nodes.getSize(node));
+        assertTrue(Math.abs(nodes.balance(node)) <= 1);
+        return height;
+    }
+
+    private void populate(int total) {
+        for (int i = 0 ; i < total ; i++) {
+            toTest.add(i);
+        }
+        assertEquals(total, toTest.size());
+    }
+    
+    @Test
+    public void sortedInsertsStayShallow() {
+        int n = 10000000;
+        LongAVLTreeBag bag = new LongAVLTreeBag();
+        for (int i = 0 ; i < n ; i++) {
+            bag.add(i);
+        }
+        LongNodeStorage nodes = bag.getNodes();
+        assertEquals(n, bag.size());
+        assertTrue(nodes.heightOf(nodes.getRoot()) <= AVLTreeBagTest.maxHeight(n));
+        assertEquals(n - 1, bag.elementAtPercentile(100));
+    }
+    
+}
@@ -0,0 +1,166 @@
+package com.google.code.jstructure.avltree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedLongNodeStorageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void survivesReopening() throws IOException {
+        Path path           = folder.newFile().toPath();
+        Random random       = new Random(42);
+        List<Long> expected = new ArrayList<Long>();
+        try (MappedLongNodeStorage nodes = new MappedLongNodeStorage(path, 4, 8)) {
+            LongAVLTreeBag bag = new LongAVLTreeBag(nodes);
+            for (int i = 0 ; i < 5000 ; i++) {
+                long value = random.nextInt(500) - 250;
+                if (random.nextInt(3) == 0) {
+                    assertEquals(expected.remove(Long.valueOf(value)), bag.remove(value));
+                } else {
+                    bag.add(value);
+                    expected.add(value);
+                }
+            }
+        }
+        Collections.sort(expected);
+
+        try (MappedLongNodeStorage nodes = new MappedLongNodeStorage(path, 10, 8)) {
+            LongAVLTreeBag bag = new LongAVLTreeBag(nodes);
+            assertEquals(expected.size(), bag.size());
+            LongAVLTreeBagTest.checkInvariants(nodes, nodes.getRoot());
+            for (int percentile = 0 ; percentile <= 100 ; percentile++) {
+                int index = Math.min((expected.size() * percentile + 99) / 100, expected.size() - 1);
+                assertEquals(expected.get(index).longValue(), bag.elementAtPercentile(percentile));
+            }
+
+            int used = nodes.used(); // freed nodes are reused after reopening too
+            int free = used - new HashSet<Long>(expected).size();
+            for (int i = 0 ; i < free ; i++) {
+                bag.add(1000 + i);
+            }
+            assertEquals(used, nodes.used());
+            assertEquals((used + 15) / 16 * 16, nodes.capacity()); // the original page size is kept
+            LongAVLTreeBagTest.checkInvariants(nodes, nodes.getRoot());
+        }
+    }
+
+    @Test
+    public void growsByPage() throws IOException {
+        Path path = folder.newFile().toPath();
+        try (MappedLongNodeStorage nodes = new MappedLongNodeStorage(path, 3, 1)) {
+            LongAVLTreeBag bag = new LongAVLTreeBag(nodes);
+            assertEquals(0, nodes.capacity());
+            for (int i = 0 ; i < 9 ; i++) {
+                bag.add(i);
+            }
+            assertEquals(16, nodes.capacity());
+            assertEquals(8L, bag.elementAtPercentile(100));
+        }
+        assertEquals(MappedLongNodeStorage.HEADER_BYTES + 16 * DirectLongNodeStorage.NODE_BYTES, Files.size(path));
+    }
+
+    @Test
+    public void emptyFileOpensEmpty() throws IOException {
+        Path path = folder.newFile().toPath();
+        new MappedLongNodeStorage(path).close();
+        try (MappedLongNodeStorage nodes = new MappedLongNodeStorage(path)) {
+            assertEquals(0, new LongAVLTreeBag(nodes).size());
+        }
+    }
+
+    @Test(expected=IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(new byte[MappedLongNodeStorage.HEADER_BYTES]);
+        }
+        new MappedLongNodeStorage(file.toPath()).close();
+    }
+
+    @Test
+    public void cacheSeesWrites() throws IOException {
+        Path path = folder.newFile().toPath();
+        try (MappedLongNodeStorage nodes = new MappedLongNodeStorage(path, 4, 2)) {
+            LongAVLTreeBag bag = new LongAVLTreeBag(nodes);
+            for (int i = 0 ; i < 1000 ; i++) {
+                bag.add(i);
+                assertTrue(bag.elementAtPercentile(100) == i);
+            }
+            LongAVLTreeBagTest.checkInvariants(nodes, nodes.getRoot());
+        }
+    }
+
+    @Test
+    public void topLevelsStayPinned() throws IOException {
+        Path path = folder.newFile().toPath();
+        try (MappedLongNodeStorage nodes = new MappedLongNodeStorage(path, 10, 1, 3)) {
+            LongAVLTreeBag bag = new LongAVLTreeBag(nodes);
+            for (int i = 0 ; i < 1000 ; i++) {
+                bag.add(i);
+            }
+            List<Integer> top = new ArrayList<Integer>();
+            int root = nodes.getRoot();
+            top.add(root);
+            for (int child : new int[] {nodes.getLeft(root), nodes.getRight(root)}) {
+                top.add(child);
+                top.add(nodes.getLeft(child));
+                top.add(nodes.getRight(child));
+            }
+            for (int percentile = 0 ; percentile <= 100 ; percentile++) {
+                bag.elementAtPercentile(percentile); // reads far more nodes than the one slot holds
+            }
+            for (int node : top) {
+                assertTrue(nodes.isPinned(node));
+            }
+            int deeper = nodes.getLeft(nodes.getLeft(top.get(2)));
+            assertFalse(nodes.isPinned(deeper));
+        }
+    }
+
+    @Test
+    public void pinnedNodesFollowTheTree() throws IOException {
+        Path path           = folder.newFile().toPath();
+        Random random       = new Random(42);
+        List<Long> expected = new ArrayList<Long>();
+        try (MappedLongNodeStorage nodes = new MappedLongNodeStorage(path, 4, 1, 2)) {
+            LongAVLTreeBag bag = new LongAVLTreeBag(nodes);
+            for (int i = 0 ; i < 5000 ; i++) {
+                long value = random.nextInt(500);
+                if (random.nextInt(3) == 0) {
+                    assertEquals(expected.remove(Long.valueOf(value)), bag.remove(value));
+                } else {
+                    bag.add(value);
+                    expected.add(value);
+                }
+                if (!expected.isEmpty()) {
+                    assertEquals(Collections.max(expected).longValue(), bag.elementAtPercentile(100));
+                }
+            }
+            LongAVLTreeBagTest.checkInvariants(nodes, nodes.getRoot());
+            int root = nodes.getRoot();
+            assertTrue(nodes.isPinned(root));
+            assertTrue(nodes.isPinned(nodes.getLeft(root)));
+            assertTrue(nodes.isPinned(nodes.getRight(root)));
+        }
+    }
+
+}
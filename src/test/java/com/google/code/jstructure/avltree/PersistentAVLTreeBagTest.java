@@ -0,0 +1,136 @@
+package com.google.code.jstructure.avltree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.google.code.jstructure.avltree.PersistentAVLTreeBag.Version;
+
+public class PersistentAVLTreeBagTest {
+    
+    private final PersistentAVLTreeBag<Integer> toTest = new PersistentAVLTreeBag<Integer>();
+    
+    @Test
+    public void sameAnswersAsAVLTreeBag() {
+        AVLTreeBag<Integer> expected = new AVLTreeBag<Integer>();
+        Random random = new Random(42);
+        for (int i = 0 ; i < 20000 ; i++) {
+            int value = random.nextInt(1000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(value), toTest.remove(value));
+            } else {
+                expected.add(value);
+                toTest.add(value);
+            }
+        }
+        checkInvariants(toTest.getRoot());
+        assertEquals(expected.size(), toTest.size());
+        for (int percentile = 0 ; percentile <= 100 ; percentile++) {
+            assertEquals(expected.elementAtPercentile(percentile), toTest.elementAtPercentile(percentile));
+        }
+        assertEquals(contents(expected), contents(toTest));
+    }
+    
+    @Test
+    public void snapshotsAreUnaffectedByLaterChanges() {
+        for (int i = 0 ; i < 100 ; i++) {
+            toTest.add(i);
+        }
+        PersistentAVLTreeBag<Integer> snapshot = toTest.snapshot();
+        assertSame(toTest.getRoot(), snapshot.getRoot());
+        
+        for (int i = 0 ; i < 100 ; i += 2) {
+            assertTrue(toTest.remove(i));
+        }
+        toTest.add(1000);
+        assertEquals(51, toTest.size());
+        assertEquals(100, snapshot.size());
+        assertEquals(Integer.valueOf(99), snapshot.elementAtPercentile(100));
+        assertEquals(Integer.valueOf(1000), toTest.elementAtPercentile(100));
+        
+        snapshot.add(-1);
+        assertEquals(51, toTest.size());
+        assertEquals(101, snapshot.size());
+    }
+    
+    @Test
+    public void removingWhatIsNotThereChangesNothing() {
+        toTest.add(1);
+        Version<Integer> root = toTest.getRoot();
+        assertFalse(toTest.remove(2));
+        assertSame(root, toTest.getRoot());
+    }
+    
+    @Test
+    public void moreItemsThanAnIntCanCount() {
+        Version<Integer> ones   = new Version<Integer>(1, 3000000000L, null, null); // as if added that many times
+        Version<Integer> root   = new Version<Integer>(2, 1, ones, null);
+        assertEquals(3000000001L, PersistentAVLTreeBag.sizeOf(root));
+        assertEquals(Integer.valueOf(1), PersistentAVLTreeBag.elementAt(root, 2999999999L));
+        assertEquals(Integer.valueOf(2), PersistentAVLTreeBag.elementAt(root, 3000000000L));
+        checkInvariants(root);
+    }
+    
+    @Test
+    public void readersSeeConsistentVersionsWhileWriting() throws InterruptedException {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final int writes = 50000;
+        Thread writer = new Thread() {
+            public void run() {
+                for (int i = 0 ; i < writes ; i++) {
+                    toTest.add(i);
+                }
+            }
+        };
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    while (toTest.size() < writes) {
+                        PersistentAVLTreeBag<Integer> snapshot = toTest.snapshot();
+                        int size = snapshot.size();
+                        if (size > 0) {
+                            assertEquals(Integer.valueOf(size - 1), snapshot.elementAtPercentile(100));
+                            assertEquals(size, contents(snapshot).size());
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+    }
+    
+    private static List<Integer> contents(Iterable<Integer> bag) {
+        List<Integer> items = new ArrayList<Integer>();
+        for (Integer item : bag) {
+            items.add(item);
+        }
+        return items;
+    }
+    
+    static int checkInvariants(Version<Integer> node) {
+        if (node == null) return 0;
+        int left    = checkInvariants(node.left);
+        int right   = checkInvariants(node.right);
+        if (node.left != null) assertTrue(node.left.item < node.item);
+        if (node.right != null) assertTrue(node.right.item > node.item);
+        assertTrue(Math.abs(left - right) <= 1);
+        assertEquals(1 + Math.max(left, right), node.height);
+        assertEquals(node.count + PersistentAVLTreeBag.sizeOf(node.left) + PersistentAVLTreeBag.sizeOf(node.right), node.size);
+        return node.height;
+    }
+    
+}
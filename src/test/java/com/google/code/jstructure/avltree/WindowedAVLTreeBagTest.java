@@ -0,0 +1,132 @@
+package com.google.code.jstructure.avltree;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class WindowedAVLTreeBagTest {
+    
+    @Test
+    public void evictsByCount() {
+        WindowedAVLTreeBag<Integer> toTest = new WindowedAVLTreeBag<Integer>(100);
+        for (int i = 0 ; i < 1000 ; i++) {
+            toTest.add(i);
+        }
+        assertEquals(100, toTest.size());
+        assertEquals(100, toTest.getBag().size());
+        assertEquals(Integer.valueOf(900), toTest.elementAtPercentile(0));
+        assertEquals(Integer.valueOf(999), toTest.elementAtPercentile(100));
+        AVLTreeBagTest.checkInvariants(toTest.getBag().getRoot());
+    }
+    
+    @Test
+    public void evictsByTime() {
+        WindowedAVLTreeBag<Integer> toTest = new WindowedAVLTreeBag<Integer>(1000, 60);
+        for (int second = 0 ; second < 120 ; second++) {
+            toTest.add(second, second);
+        }
+        assertEquals(60, toTest.size());
+        assertEquals(Integer.valueOf(60), toTest.elementAtPercentile(0));
+        
+        assertEquals(30, toTest.expire(149));
+        assertEquals(30, toTest.size());
+        assertEquals(Integer.valueOf(90), toTest.elementAtPercentile(0));
+    }
+    
+    @Test
+    public void expireEverything() {
+        WindowedAVLTreeBag<Integer> toTest = new WindowedAVLTreeBag<Integer>(1000, 100);
+        for (int i = 0 ; i < 500 ; i++) {
+            toTest.add(i, i / 10);
+        }
+        assertEquals(500, toTest.expire(1000));
+        assertEquals(0, toTest.size());
+        assertEquals(0, toTest.getBag().size());
+        toTest.add(7, 1000);
+        assertEquals(Integer.valueOf(7), toTest.elementAtPercentile(50));
+    }
+    
+    @Test
+    public void timestampsNearTheLimits() {
+        WindowedAVLTreeBag<Integer> toTest = new WindowedAVLTreeBag<Integer>(10, 100);
+        toTest.add(1, Long.MIN_VALUE + 1);
+        toTest.add(2, Long.MIN_VALUE + 5);
+        assertEquals(2, toTest.size());
+        
+        toTest = new WindowedAVLTreeBag<Integer>(10, Long.MAX_VALUE - 1);
+        toTest.add(1, Long.MIN_VALUE + 1);
+        toTest.add(2, 2);
+        toTest.add(3, Long.MAX_VALUE);
+        assertEquals(2, toTest.size());
+        assertEquals(Integer.valueOf(2), toTest.elementAtPercentile(0));
+    }
+    
+    @Test
+    public void expireManyAtOnce() {
+        WindowedAVLTreeBag<Integer> toTest = new WindowedAVLTreeBag<Integer>(10000, 100);
+        LinkedList<int[]> queue = new LinkedList<int[]>();
+        Random random = new Random(42);
+        long now = 0;
+        for (int i = 0 ; i < 20000 ; i++) {
+            now += random.nextInt(100) == 0 ? random.nextInt(80) : 0;
+            int value = random.nextInt(50);
+            toTest.add(value, now);
+            queue.add(new int[] {value, (int) now});
+            while (queue.size() > 10000 || queue.getFirst()[1] <= now - 100) {
+                queue.removeFirst();
+            }
+            assertEquals(queue.size(), toTest.size());
+            assertEquals(queue.size(), toTest.getBag().size());
+        }
+        AVLTreeBagTest.checkInvariants(toTest.getBag().getRoot());
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int[] sample : queue) {
+            expected.add(sample[0]);
+        }
+        Collections.sort(expected);
+        assertEquals(expected, toTest.getBag().stream().collect(Collectors.toList()));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void timestampsCannotGoBackwards() {
+        WindowedAVLTreeBag<Integer> toTest = new WindowedAVLTreeBag<Integer>(10, 10);
+        toTest.add(1, 5);
+        toTest.add(1, 4);
+    }
+    
+    @Test
+    public void matchesSideQueue() {
+        WindowedAVLTreeBag<Integer> toTest = new WindowedAVLTreeBag<Integer>(300, 50);
+        LinkedList<int[]> queue = new LinkedList<int[]>();
+        Random random = new Random(42);
+        long now = 0;
+        for (int i = 0 ; i < 5000 ; i++) {
+            now += random.nextInt(3);
+            int value = random.nextInt(100);
+            toTest.add(value, now);
+            queue.add(new int[] {value, (int) now});
+            while (queue.size() > 300 || queue.getFirst()[1] <= now - 50) {
+                queue.removeFirst();
+            }
+            assertEquals(queue.size(), toTest.size());
+        }
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int[] sample : queue) {
+            expected.add(sample[0]);
+        }
+        Collections.sort(expected);
+        for (int percentile = 0 ; percentile <= 100 ; percentile += 5) {
+            int index = Math.min((expected.size() * percentile + 99) / 100, expected.size() - 1);
+            assertEquals(expected.get(index), toTest.elementAtPercentile(percentile));
+        }
+        AVLTreeBagTest.checkInvariants(toTest.getBag().getRoot());
+    }
+    
+}
@@ -0,0 +1,123 @@
+package com.google.code.jstructure.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.code.jstructure.avltree.AVLTreeBag;
+import com.google.code.jstructure.btree.LongBPlusTreeBag.Inner;
+import com.google.code.jstructure.btree.LongBPlusTreeBag.Leaf;
+import com.google.code.jstructure.btree.LongBPlusTreeBag.Page;
+
+public class LongBPlusTreeBagTest {
+    
+    private final LongBPlusTreeBag toTest = new LongBPlusTreeBag();
+    
+    @Test
+    public void sameAnswersAsAVLTreeBag() {
+        AVLTreeBag<Long> expected = new AVLTreeBag<Long>();
+        Random random = new Random(42);
+        for (int i = 0 ; i < 200000 ; i++) {
+            long value = random.nextInt(20000) - 10000;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(value), toTest.remove(value));
+            } else {
+                expected.add(value);
+                toTest.add(value);
+            }
+        }
+        assertEquals(expected.size(), toTest.size());
+        checkInvariants(toTest.getRoot(), Long.MIN_VALUE, Long.MAX_VALUE);
+        assertTrue(toTest.height() > 2);
+        for (int percentile = 0 ; percentile <= 100 ; percentile++) {
+            assertEquals(expected.elementAtPercentile(percentile).longValue(), toTest.elementAtPercentile(percentile));
+        }
+        for (long item = -10001 ; item <= 10001 ; item += 7) {
+            assertEquals(expected.rank(item), toTest.rank(item));
+            assertEquals(expected.countLessThan(item), toTest.countLessThan(item));
+        }
+        assertEquals(expected.countBetween(-500L, 500L), toTest.countBetween(-500, 500));
+        
+        List<Long> items = new ArrayList<Long>();
+        toTest.forEach(items::add);
+        assertEquals(expected.stream().collect(java.util.stream.Collectors.toList()), items);
+        
+        List<Long> between = new ArrayList<Long>();
+        toTest.forEachBetween(-500, 500, between::add);
+        assertEquals(toTest.countBetween(-500, 500), between.size());
+        assertEquals(Long.valueOf(expected.countLessThan(-500L)), Long.valueOf(items.indexOf(between.get(0))));
+    }
+    
+    @Test
+    public void ascendingThenEmptied() {
+        int n = 100000;
+        for (int i = 0 ; i < n ; i++) {
+            toTest.add(i);
+        }
+        checkInvariants(toTest.getRoot(), Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(n - 1, toTest.elementAtPercentile(100));
+        assertEquals(n / 2, toTest.elementAtPercentile(50));
+        for (int i = 0 ; i < n ; i++) {
+            assertTrue(toTest.remove(i));
+        }
+        assertEquals(0, toTest.size());
+        assertFalse(toTest.remove(0));
+        assertTrue(toTest.getRoot() instanceof Leaf);
+        toTest.add(7);
+        assertEquals(7, toTest.elementAtPercentile(50));
+    }
+    
+    @Test
+    public void duplicatesShareEntries() {
+        for (int i = 0 ; i < 1000 ; i++) {
+            toTest.add(i % 3);
+        }
+        assertSame(Leaf.class, toTest.getRoot().getClass());
+        assertEquals(3, toTest.getRoot().n);
+        assertEquals(334, toTest.rank(0));
+        assertEquals(2, toTest.elementAtPercentile(100));
+    }
+    
+    @Test(expected=NoSuchElementException.class)
+    public void emptyPercentile() {
+        toTest.elementAtPercentile(50);
+    }
+    
+    /**
+     * @return the size of the page, checked against what its parent holds for it
+     */
+    private static int checkInvariants(Page page, long low, long high) {
+        if (page instanceof Leaf) {
+            Leaf leaf = (Leaf) page;
+            for (int i = 0 ; i < leaf.n ; i++) {
+                assertTrue(leaf.keys[i] >= low && leaf.keys[i] < high || high == Long.MAX_VALUE);
+                assertTrue(i == 0 || leaf.keys[i - 1] < leaf.keys[i]);
+                assertTrue(leaf.counts[i] > 0);
+            }
+            if (leaf.next != null) {
+                assertSame(leaf, leaf.next.previous);
+                assertTrue(leaf.n == 0 || leaf.next.keys[0] > leaf.keys[leaf.n - 1]);
+            }
+            return leaf.size();
+        }
+        Inner inner = (Inner) page;
+        assertTrue(inner.n > 0);
+        int size = 0;
+        for (int i = 0 ; i < inner.n ; i++) {
+            long childLow   = i == 0 ? low : inner.keys[i - 1];
+            long childHigh  = i == inner.n - 1 ? high : inner.keys[i];
+            assertEquals(inner.sizes[i], checkInvariants(inner.children[i], childLow, childHigh));
+            size += inner.sizes[i];
+        }
+        return size;
+    }
+    
+}
@@ -0,0 +1,84 @@
+package com.google.code.jstructure.kll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.code.jstructure.avltree.AVLTreeBag;
+
+public class KllSketchTest {
+    
+    private static final double RANK_ERROR = 0.01;
+    
+    private KllSketch<Integer> toTest = new KllSketch<Integer>(KllSketch.kFor(RANK_ERROR), new Random(42));
+    
+    private AVLTreeBag<Integer> exact = new AVLTreeBag<Integer>();
+    
+    @Test
+    public void exactWhileSmall() {
+        for (int i = 0 ; i < 100 ; i++) {
+            toTest.add(i);
+        }
+        assertEquals(100, toTest.size());
+        assertEquals(Integer.valueOf(90), toTest.elementAtPercentile(90));
+        assertEquals(Integer.valueOf(0), toTest.elementAtPercentile(0));
+        assertEquals(Integer.valueOf(99), toTest.elementAtPercentile(100));
+    }
+    
+    @Test
+    public void rankErrorFromK() {
+        assertTrue(KllSketch.rankError(KllSketch.kFor(RANK_ERROR)) <= RANK_ERROR);
+        assertEquals(0.0166, KllSketch.rankError(200), 0.0001);
+    }
+    
+    @Test(expected=NoSuchElementException.class)
+    public void emptyGet() {
+        toTest.elementAtPercentile(50);
+    }
+    
+    @Test
+    public void accurateAgainstExactBagForRandomData() {
+        Random random = new Random(7);
+        for (int i = 0 ; i < 200000 ; i++) {
+            int value = (int) Math.abs(random.nextGaussian() * 1000);
+            toTest.add(value);
+            exact.add(value);
+        }
+        checkAccuracy();
+    }
+    
+    @Test
+    public void accurateAgainstExactBagForSortedData() {
+        for (int i = 0 ; i < 200000 ; i++) {
+            toTest.add(i);
+            exact.add(i);
+        }
+        checkAccuracy();
+    }
+    
+    @Test
+    public void boundedMemory() {
+        for (int i = 0 ; i < 1000000 ; i++) {
+            toTest.add(i % 1000);
+        }
+        assertEquals(1000000, toTest.count());
+        assertTrue("" + toTest.retained(), toTest.retained() < 4 * KllSketch.kFor(RANK_ERROR));
+    }
+    
+    private void checkAccuracy() {
+        assertEquals(exact.size(), toTest.size());
+        double slack = RANK_ERROR * 100;
+        for (int percentile = 0 ; percentile <= 100 ; percentile++) {
+            List<Integer> bounds = exact.elementsAtPercentiles(Math.max(0, percentile - slack), Math.min(100, percentile + slack));
+            Integer approximate = toTest.elementAtPercentile(percentile);
+            assertTrue(percentile + ": " + approximate + " not in " + bounds, 
+                    approximate >= bounds.get(0) && approximate <= bounds.get(1));
+        }
+    }
+    
+}